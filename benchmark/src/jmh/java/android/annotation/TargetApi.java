@@ -0,0 +1,9 @@
+package android.annotation;
+
+/**
+ * Stands in for the framework annotation, so core classes compile into the benchmarks.
+ */
+public @interface TargetApi {
+
+    int value();
+}
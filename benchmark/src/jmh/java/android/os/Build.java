@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Stands in for the framework class, reporting Marshmallow so the core classes take their keystore paths.
+ */
+public class Build {
+
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.M;
+    }
+
+    public static class VERSION_CODES {
+        public static final int M = 23;
+    }
+}
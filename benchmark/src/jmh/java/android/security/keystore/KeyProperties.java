@@ -0,0 +1,11 @@
+package android.security.keystore;
+
+/**
+ * Stands in for the framework class, with the constants the core classes use.
+ */
+public abstract class KeyProperties {
+
+    public static final String KEY_ALGORITHM_AES = "AES";
+    public static final String BLOCK_MODE_CBC = "CBC";
+    public static final String ENCRYPTION_PADDING_PKCS7 = "PKCS7Padding";
+}
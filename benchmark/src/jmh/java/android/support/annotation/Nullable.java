@@ -0,0 +1,7 @@
+package android.support.annotation;
+
+/**
+ * Stands in for the support annotation, so core classes compile into the benchmarks.
+ */
+public @interface Nullable {
+}
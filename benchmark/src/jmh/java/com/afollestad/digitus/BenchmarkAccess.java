@@ -0,0 +1,55 @@
+package com.afollestad.digitus;
+
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Exposes the package-private parts of {@link KeyStoreCache} and {@link DigitusProviders} to the
+ * benchmarks, which live in their own package.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class BenchmarkAccess {
+
+    private BenchmarkAccess() {
+    }
+
+    public static KeyStoreCache newKeyStoreCache(KeyStore keyStore) {
+        return new KeyStoreCache(keyStore);
+    }
+
+    public static SecretKey getKey(KeyStoreCache cache, String alias) throws Exception {
+        return cache.getKey(alias);
+    }
+
+    public static void putKey(KeyStoreCache cache, String alias, SecretKey key) {
+        cache.putKey(alias, key);
+    }
+
+    public static void invalidate(KeyStoreCache cache, String alias) {
+        cache.invalidate(alias);
+    }
+
+    public static DigitusProviders acquire() {
+        return DigitusProviders.acquire();
+    }
+
+    public static void release(DigitusProviders providers) {
+        DigitusProviders.release(providers);
+    }
+
+    public static KeyStoreCache keyStoreCache(DigitusProviders providers) {
+        return providers.mKeyStoreCache;
+    }
+
+    public static KeyGenerator keyGenerator(DigitusProviders providers) {
+        return providers.mKeyGenerator;
+    }
+
+    public static Cipher cipher(DigitusProviders providers) {
+        return providers.mCipher;
+    }
+}
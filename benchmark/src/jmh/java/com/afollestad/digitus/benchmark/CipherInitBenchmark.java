@@ -0,0 +1,72 @@
+package com.afollestad.digitus.benchmark;
+
+import com.afollestad.digitus.BenchmarkAccess;
+import com.afollestad.digitus.DigitusProviders;
+import com.afollestad.digitus.KeyStoreCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * The work initCipher() does before every prompt: getting the key through KeyStoreCache and
+ * initializing the cipher with it, from a cold key store and a new cipher down to the cached key and
+ * the cipher DigitusProviders resolved.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+@State(Scope.Thread)
+public class CipherInitBenchmark {
+
+    private KeyStoreCache mCache;
+    private Cipher mCipher;
+
+    @Setup
+    public void setUp() throws Exception {
+        StubKeyStoreProvider.install();
+        final DigitusProviders providers = BenchmarkAccess.acquire();
+        mCache = BenchmarkAccess.keyStoreCache(providers);
+        mCipher = BenchmarkAccess.cipher(providers);
+        BenchmarkAccess.getKey(mCache, SoftwareKeyStore.KEY_NAME);
+    }
+
+    @Benchmark
+    public Cipher uncached() throws Exception {
+        final KeyStoreCache cache = BenchmarkAccess.newKeyStoreCache(KeyStore.getInstance(StubKeyStoreProvider.NAME));
+        final SecretKey key = BenchmarkAccess.getKey(cache, SoftwareKeyStore.KEY_NAME);
+        final Cipher cipher = Cipher.getInstance(StubKeyStoreProvider.TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        return cipher;
+    }
+
+    @Benchmark
+    public Cipher loadedKeyStore() throws Exception {
+        BenchmarkAccess.invalidate(mCache, SoftwareKeyStore.KEY_NAME);
+        mCipher.init(Cipher.ENCRYPT_MODE, BenchmarkAccess.getKey(mCache, SoftwareKeyStore.KEY_NAME));
+        return mCipher;
+    }
+
+    @Benchmark
+    public Cipher cachedKey() throws Exception {
+        mCipher.init(Cipher.ENCRYPT_MODE, BenchmarkAccess.getKey(mCache, SoftwareKeyStore.KEY_NAME));
+        return mCipher;
+    }
+}
@@ -0,0 +1,67 @@
+package com.afollestad.digitus.benchmark;
+
+import com.afollestad.digitus.BenchmarkAccess;
+import com.afollestad.digitus.DigitusProviders;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Key generation as done by recreateKey(), with a key generator looked up on the spot against the
+ * one DigitusProviders resolved, and with the new key put into a KeyStoreCache. KeyLifecycle itself
+ * needs an Activity, so which generations it skips isn't measured here.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+@State(Scope.Thread)
+public class KeyGenerationBenchmark {
+
+    private DigitusProviders mProviders;
+    private KeyGenerator mGenerator;
+
+    @Setup
+    public void setUp() throws Exception {
+        StubKeyStoreProvider.install();
+        mProviders = BenchmarkAccess.acquire();
+        mGenerator = BenchmarkAccess.keyGenerator(mProviders);
+    }
+
+    @Benchmark
+    public SecretKey lookupAndGenerate() throws Exception {
+        final KeyGenerator generator = KeyGenerator.getInstance(SoftwareKeyStore.KEY_ALGORITHM, StubKeyStoreProvider.NAME);
+        generator.init(SoftwareKeyStore.KEY_SIZE);
+        return generator.generateKey();
+    }
+
+    @Benchmark
+    public SecretKey generate() {
+        mGenerator.init(SoftwareKeyStore.KEY_SIZE);
+        return mGenerator.generateKey();
+    }
+
+    @Benchmark
+    public SecretKey generateAndCache() {
+        mGenerator.init(SoftwareKeyStore.KEY_SIZE);
+        final SecretKey key = mGenerator.generateKey();
+        BenchmarkAccess.putKey(BenchmarkAccess.keyStoreCache(mProviders), SoftwareKeyStore.KEY_NAME, key);
+        return key;
+    }
+}
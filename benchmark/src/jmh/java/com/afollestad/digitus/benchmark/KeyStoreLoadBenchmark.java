@@ -0,0 +1,64 @@
+package com.afollestad.digitus.benchmark;
+
+import com.afollestad.digitus.BenchmarkAccess;
+import com.afollestad.digitus.KeyStoreCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+/**
+ * KeyStoreCache, which initCipher() and recreateKey() go through: loading the keystore and looking
+ * the key up on every call, as before the cache, against a loaded store and a cached key.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+@State(Scope.Thread)
+public class KeyStoreLoadBenchmark {
+
+    private KeyStoreCache mLoaded;
+    private KeyStoreCache mCached;
+
+    @Setup
+    public void setUp() throws Exception {
+        StubKeyStoreProvider.install();
+        mLoaded = BenchmarkAccess.newKeyStoreCache(KeyStore.getInstance(StubKeyStoreProvider.NAME));
+        BenchmarkAccess.getKey(mLoaded, SoftwareKeyStore.KEY_NAME);
+        mCached = BenchmarkAccess.newKeyStoreCache(KeyStore.getInstance(StubKeyStoreProvider.NAME));
+        BenchmarkAccess.getKey(mCached, SoftwareKeyStore.KEY_NAME);
+    }
+
+    @Benchmark
+    public SecretKey uncached() throws Exception {
+        final KeyStoreCache cache = BenchmarkAccess.newKeyStoreCache(KeyStore.getInstance(StubKeyStoreProvider.NAME));
+        return BenchmarkAccess.getKey(cache, SoftwareKeyStore.KEY_NAME);
+    }
+
+    @Benchmark
+    public SecretKey loadedKeyStore() throws Exception {
+        BenchmarkAccess.invalidate(mLoaded, SoftwareKeyStore.KEY_NAME);
+        return BenchmarkAccess.getKey(mLoaded, SoftwareKeyStore.KEY_NAME);
+    }
+
+    @Benchmark
+    public SecretKey cachedKey() throws Exception {
+        return BenchmarkAccess.getKey(mCached, SoftwareKeyStore.KEY_NAME);
+    }
+}
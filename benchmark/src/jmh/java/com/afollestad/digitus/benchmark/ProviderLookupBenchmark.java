@@ -0,0 +1,63 @@
+package com.afollestad.digitus.benchmark;
+
+import com.afollestad.digitus.BenchmarkAccess;
+import com.afollestad.digitus.DigitusProviders;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving DigitusProviders, which init() does on the calling thread unless they were warmed up,
+ * against attaching to a set that DigitusProviders.warmUp() already resolved.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+public class ProviderLookupBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Installed {
+
+        @Setup
+        public void setUp() throws Exception {
+            StubKeyStoreProvider.install();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class WarmedUp {
+
+        @Setup
+        public void setUp() throws Exception {
+            StubKeyStoreProvider.install();
+            DigitusProviders.warmUp().get();
+        }
+    }
+
+    @Benchmark
+    public DigitusProviders resolve(Installed installed) {
+        // Without a warm-up, every acquire resolves a new set
+        return BenchmarkAccess.acquire();
+    }
+
+    @Benchmark
+    public DigitusProviders warmedUp(WarmedUp warmedUp) {
+        final DigitusProviders providers = BenchmarkAccess.acquire();
+        BenchmarkAccess.release(providers);
+        return providers;
+    }
+}
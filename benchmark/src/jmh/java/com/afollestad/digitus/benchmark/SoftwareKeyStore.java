@@ -0,0 +1,62 @@
+package com.afollestad.digitus.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * The JCEKS store behind {@link StubKeyStoreProvider}, which the benchmarks also use directly for
+ * their uncached baselines.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+final class SoftwareKeyStore {
+
+    static final String KEY_STORE = "JCEKS";
+    static final String KEY_ALGORITHM = "AES";
+    static final String KEY_NAME = "benchmark_key";
+    // AndroidKeyStore uses PKCS7Padding, which the JVM's providers call PKCS5Padding.
+    static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    static final int KEY_SIZE = 256;
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    private SoftwareKeyStore() {
+    }
+
+    static SecretKey generateKey() throws GeneralSecurityException {
+        final KeyGenerator generator = KeyGenerator.getInstance(KEY_ALGORITHM);
+        generator.init(KEY_SIZE);
+        return generator.generateKey();
+    }
+
+    static void putKey(KeyStore keyStore, String alias, SecretKey key) throws GeneralSecurityException {
+        keyStore.setEntry(alias, new KeyStore.SecretKeyEntry(key), new KeyStore.PasswordProtection(PASSWORD));
+    }
+
+    static SecretKey getKey(KeyStore keyStore, String alias) throws GeneralSecurityException {
+        return (SecretKey) keyStore.getKey(alias, PASSWORD);
+    }
+
+    /**
+     * @return A serialized store holding one key, so loading it does real work like AndroidKeyStore does.
+     */
+    static byte[] populatedStore() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance(KEY_STORE);
+        keyStore.load(null);
+        putKey(keyStore, KEY_NAME, generateKey());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        keyStore.store(out, PASSWORD);
+        return out.toByteArray();
+    }
+
+    static KeyStore load(byte[] store) throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance(KEY_STORE);
+        keyStore.load(new ByteArrayInputStream(store), PASSWORD);
+        return keyStore;
+    }
+}
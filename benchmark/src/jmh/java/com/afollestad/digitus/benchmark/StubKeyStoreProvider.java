@@ -0,0 +1,296 @@
+package com.afollestad.digitus.benchmark;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.AlgorithmParameters;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreSpi;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Date;
+import java.util.Enumeration;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.KeyGenerator;
+import javax.crypto.KeyGeneratorSpi;
+import javax.crypto.SecretKey;
+
+/**
+ * An "AndroidKeyStore" provider for a plain JVM, so the benchmarks can run the library's own
+ * {@code KeyStoreCache} and {@code DigitusProviders} instead of repeating their call sequence.
+ * Loading the store deserializes a populated {@link SoftwareKeyStore}, so it does real work like the
+ * keystore daemon does; keys and ciphers come from the JVM's default providers. Absolute numbers say
+ * nothing about a device, but relative changes (caching, warm-up, fewer lookups) carry over.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class StubKeyStoreProvider extends Provider {
+
+    static final String NAME = "AndroidKeyStore";
+    static final String TRANSFORMATION = "AES/CBC/PKCS7Padding";
+
+    private static byte[] sStore;
+
+    private StubKeyStoreProvider() {
+        super(NAME, 1.0, "Software stand-in for AndroidKeyStore");
+        put("KeyStore." + NAME, StubKeyStoreSpi.class.getName());
+        put("KeyGenerator.AES", StubKeyGeneratorSpi.class.getName());
+        // AndroidKeyStore uses PKCS7Padding, which the JVM's providers call PKCS5Padding.
+        put("Cipher." + TRANSFORMATION, StubCipherSpi.class.getName());
+    }
+
+    /**
+     * Registers the provider once per JVM, with a store holding {@link SoftwareKeyStore#KEY_NAME}.
+     */
+    static synchronized void install() throws Exception {
+        if (Security.getProvider(NAME) != null)
+            return;
+        sStore = SoftwareKeyStore.populatedStore();
+        Security.addProvider(new StubKeyStoreProvider());
+    }
+
+    public static final class StubKeyStoreSpi extends KeyStoreSpi {
+
+        private KeyStore mDelegate;
+
+        @Override
+        public void engineLoad(InputStream stream, char[] password) {
+            try {
+                mDelegate = SoftwareKeyStore.load(sStore);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Key engineGetKey(String alias, char[] password) {
+            try {
+                // AndroidKeyStore doesn't use passwords
+                return SoftwareKeyStore.getKey(mDelegate, alias);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean engineContainsAlias(String alias) {
+            try {
+                return mDelegate.containsAlias(alias);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            try {
+                return mDelegate.aliases();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int engineSize() {
+            try {
+                return mDelegate.size();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) {
+            try {
+                SoftwareKeyStore.putKey(mDelegate, alias, (SecretKey) key);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void engineDeleteEntry(String alias) {
+            try {
+                mDelegate.deleteEntry(alias);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(String alias) {
+            return engineContainsAlias(alias);
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(String alias) {
+            return null;
+        }
+
+        @Override
+        public Certificate engineGetCertificate(String alias) {
+            return null;
+        }
+
+        @Override
+        public Date engineGetCreationDate(String alias) {
+            return null;
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineSetCertificateEntry(String alias, Certificate cert) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(String alias) {
+            return false;
+        }
+
+        @Override
+        public String engineGetCertificateAlias(Certificate cert) {
+            return null;
+        }
+
+        @Override
+        public void engineStore(OutputStream stream, char[] password) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static final class StubKeyGeneratorSpi extends KeyGeneratorSpi {
+
+        private final KeyGenerator mDelegate;
+
+        public StubKeyGeneratorSpi() throws Exception {
+            mDelegate = KeyGenerator.getInstance(SoftwareKeyStore.KEY_ALGORITHM, "SunJCE");
+        }
+
+        @Override
+        protected void engineInit(SecureRandom random) {
+            mDelegate.init(SoftwareKeyStore.KEY_SIZE, random);
+        }
+
+        @Override
+        protected void engineInit(AlgorithmParameterSpec params, SecureRandom random) {
+            // A KeyGenParameterSpec only matters to the real keystore
+            mDelegate.init(SoftwareKeyStore.KEY_SIZE, random);
+        }
+
+        @Override
+        protected void engineInit(int keySize, SecureRandom random) {
+            mDelegate.init(keySize, random);
+        }
+
+        @Override
+        protected SecretKey engineGenerateKey() {
+            return mDelegate.generateKey();
+        }
+    }
+
+    public static final class StubCipherSpi extends CipherSpi {
+
+        private final Cipher mDelegate;
+
+        public StubCipherSpi() throws Exception {
+            mDelegate = Cipher.getInstance(SoftwareKeyStore.TRANSFORMATION, "SunJCE");
+        }
+
+        @Override
+        protected void engineSetMode(String mode) {
+        }
+
+        @Override
+        protected void engineSetPadding(String padding) {
+        }
+
+        @Override
+        protected int engineGetBlockSize() {
+            return mDelegate.getBlockSize();
+        }
+
+        @Override
+        protected int engineGetOutputSize(int inputLen) {
+            return mDelegate.getOutputSize(inputLen);
+        }
+
+        @Override
+        protected byte[] engineGetIV() {
+            return mDelegate.getIV();
+        }
+
+        @Override
+        protected AlgorithmParameters engineGetParameters() {
+            return mDelegate.getParameters();
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, SecureRandom random) {
+            try {
+                mDelegate.init(opmode, key, random);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random) {
+            try {
+                mDelegate.init(opmode, key, params, random);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random) {
+            try {
+                mDelegate.init(opmode, key, params, random);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected byte[] engineUpdate(byte[] input, int offset, int length) {
+            return mDelegate.update(input, offset, length);
+        }
+
+        @Override
+        protected int engineUpdate(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+            try {
+                return mDelegate.update(input, offset, length, output, outputOffset);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected byte[] engineDoFinal(byte[] input, int offset, int length) {
+            try {
+                return mDelegate.doFinal(input, offset, length);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected int engineDoFinal(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+            try {
+                return mDelegate.doFinal(input, offset, length, output, outputOffset);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Drives fingerprint authentication without any UI. It owns the call to
+ * {@link FingerprintSensor#authenticate}, its {@link CancellationSignal} and the {@link Stage}
+ * transitions, and publishes everything that happens to its listeners. The authentication dialog is
+ * just one renderer on top of it; a prompt embedded in an existing layout can be another.
+ * <p/>
+ * Below Marshmallow there is no sensor, so the engine never starts listening.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class AuthenticationEngine {
+
+    public interface Listener {
+
+        void onStageChanged(Stage stage);
+
+        /**
+         * The sensor has been armed and is waiting for a finger.
+         */
+        void onListening();
+
+        void onAuthenticationHelp(CharSequence helpString);
+
+        void onAuthenticationFailed();
+
+        /**
+         * The sensor stopped listening because of an unrecoverable error.
+         */
+        void onAuthenticationError(int errorCode, CharSequence errString);
+
+        /**
+         * The sensor is temporarily locked out after too many failed attempts. The engine re-arms it
+         * by itself once the lockout has expired, calling {@link #onListening()} again.
+         *
+         * @param remainingMillis How long the lockout lasts from now.
+         */
+        void onLockout(long remainingMillis);
+
+        void onAuthenticationSucceeded();
+    }
+
+    /**
+     * A {@link Listener} with empty implementations, to override only what's needed.
+     */
+    public static class SimpleListener implements Listener {
+
+        @Override
+        public void onStageChanged(Stage stage) {
+        }
+
+        @Override
+        public void onListening() {
+        }
+
+        @Override
+        public void onAuthenticationHelp(CharSequence helpString) {
+        }
+
+        @Override
+        public void onAuthenticationFailed() {
+        }
+
+        @Override
+        public void onAuthenticationError(int errorCode, CharSequence errString) {
+        }
+
+        @Override
+        public void onLockout(long remainingMillis) {
+        }
+
+        @Override
+        public void onAuthenticationSucceeded() {
+        }
+    }
+
+    /**
+     * How long the platform locks the sensor out after too many failed attempts, by default. Its
+     * callback doesn't report the duration, but it has been 30 seconds since the API was introduced.
+     */
+    public static final long LOCKOUT_MILLIS = 30000;
+
+    private final FingerprintSensor mSensor;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private Stage mStage = Stage.FINGERPRINT;
+    private FingerprintManager.CryptoObject mCryptoObject;
+    private CancellationSignal mCancellationSignal;
+    private long mLockedOutUntil;
+    private long mLockoutMillis = LOCKOUT_MILLIS;
+    private boolean mLockoutReported;
+    private Handler mHandler;
+
+    /**
+     * @param fingerprintManager The fingerprint manager, or null below Marshmallow.
+     */
+    public AuthenticationEngine(@Nullable FingerprintManager fingerprintManager) {
+        this(fingerprintManager != null ? new SystemFingerprintSensor(fingerprintManager) : null);
+    }
+
+    /**
+     * @param sensor The sensor to authenticate with, or null if there is none.
+     */
+    public AuthenticationEngine(@Nullable FingerprintSensor sensor) {
+        mSensor = sensor;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public Stage getStage() {
+        return mStage;
+    }
+
+    /**
+     * Moves to another stage. The sensor is only used in the {@link Stage#FINGERPRINT} stage, so
+     * moving anywhere else stops listening.
+     */
+    public void setStage(Stage stage) {
+        if (stage != Stage.FINGERPRINT)
+            stopListening();
+        if (mStage == stage)
+            return;
+        mStage = stage;
+        for (Listener listener : mListeners)
+            listener.onStageChanged(stage);
+    }
+
+    /**
+     * Switches to the backup (password) stage, e.g. when the sensor can't be used or the user asks to.
+     */
+    public void goToBackup() {
+        setStage(Stage.PASSWORD);
+    }
+
+    /**
+     * Sets the crypto object to be passed in when authenticating with fingerprint.
+     */
+    public void setCryptoObject(@Nullable FingerprintManager.CryptoObject cryptoObject) {
+        mCryptoObject = cryptoObject;
+    }
+
+    @Nullable
+    public FingerprintManager.CryptoObject getCryptoObject() {
+        return mCryptoObject;
+    }
+
+    /**
+     * @return True if there's a sensor with enrolled fingerprints, and the permission to use it.
+     */
+    public boolean isFingerprintAuthAvailable() {
+        if (mSensor == null)
+            return false;
+        try {
+            return mSensor.isHardwareDetected() && mSensor.hasEnrolledFingerprints();
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    public boolean isListening() {
+        return mCancellationSignal != null;
+    }
+
+    /**
+     * Carries a lockout over from an earlier engine, so a new prompt doesn't arm the sensor before
+     * the lockout is over, only to be locked out again.
+     *
+     * @param lockedOutUntil The {@link SystemClock#elapsedRealtime()} at which the lockout ends.
+     */
+    public void setLockedOutUntil(long lockedOutUntil) {
+        mLockedOutUntil = lockedOutUntil;
+    }
+
+    /**
+     * @return The {@link SystemClock#elapsedRealtime()} at which the current lockout ends, which may
+     * be in the past.
+     */
+    public long getLockedOutUntil() {
+        return mLockedOutUntil;
+    }
+
+    /**
+     * @param lockoutMillis How long to wait before arming the sensor again after it reports a lockout.
+     */
+    public void setLockoutDuration(long lockoutMillis) {
+        mLockoutMillis = lockoutMillis;
+    }
+
+    /**
+     * @return How long the sensor stays locked out, or 0 if it isn't.
+     */
+    public long getLockoutRemaining() {
+        return Math.max(0, mLockedOutUntil - SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Arms the sensor, if in the {@link Stage#FINGERPRINT} stage and not listening already. During a
+     * lockout, the sensor is armed as soon as the lockout expires instead.
+     *
+     * @return True if the sensor is listening afterwards, or will be once a lockout expires.
+     */
+    public boolean startListening() {
+        if (isListening())
+            return true;
+        if (mStage != Stage.FINGERPRINT || !isFingerprintAuthAvailable())
+            return false;
+        final long lockoutRemaining = getLockoutRemaining();
+        if (lockoutRemaining > 0) {
+            if (!mLockoutReported) {
+                // A lockout carried over from an earlier prompt
+                mLockoutReported = true;
+                for (Listener listener : mListeners)
+                    listener.onLockout(lockoutRemaining);
+            }
+            scheduleRearm(lockoutRemaining);
+            return true;
+        }
+        mLockoutReported = false;
+        mCancellationSignal = new CancellationSignal();
+        try {
+            mSensor.authenticate(mCryptoObject, mCancellationSignal, new SensorCallback(mCancellationSignal));
+        } catch (SecurityException e) {
+            mCancellationSignal = null;
+            return false;
+        }
+        for (Listener listener : mListeners)
+            listener.onListening();
+        return true;
+    }
+
+    /**
+     * Stops listening, and cancels re-arming the sensor after a lockout.
+     */
+    public void stopListening() {
+        if (mHandler != null)
+            mHandler.removeCallbacks(mRearmRunnable);
+        if (mCancellationSignal != null) {
+            mCancellationSignal.cancel();
+            mCancellationSignal = null;
+        }
+    }
+
+    private void scheduleRearm(long delayMillis) {
+        if (mHandler == null)
+            mHandler = new Handler(Looper.getMainLooper());
+        mHandler.removeCallbacks(mRearmRunnable);
+        mHandler.postDelayed(mRearmRunnable, delayMillis);
+    }
+
+    private final Runnable mRearmRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // A new session gets a fresh CancellationSignal; the crypto object is reused as is.
+            startListening();
+        }
+    };
+
+    /**
+     * Receives the events of a single listening session. Events which arrive after the session was
+     * stopped, or replaced by a newer one, are dropped.
+     */
+    private class SensorCallback extends FingerprintManager.AuthenticationCallback {
+
+        private final CancellationSignal mSignal;
+
+        SensorCallback(CancellationSignal signal) {
+            mSignal = signal;
+        }
+
+        private boolean isCurrent() {
+            return mSignal == mCancellationSignal;
+        }
+
+        @Override
+        public void onAuthenticationError(int errMsgId, CharSequence errString) {
+            if (!isCurrent())
+                return;
+            mCancellationSignal = null;
+            if (errMsgId == FingerprintManager.FINGERPRINT_ERROR_LOCKOUT) {
+                // Temporary, so wait it out rather than giving up on the sensor. A lockout that's
+                // already running doesn't start over, only one whose deadline has passed is extended.
+                final long now = SystemClock.elapsedRealtime();
+                if (mLockedOutUntil <= now)
+                    mLockedOutUntil = now + mLockoutMillis;
+                final long remaining = mLockedOutUntil - now;
+                mLockoutReported = true;
+                for (Listener listener : mListeners)
+                    listener.onLockout(remaining);
+                scheduleRearm(remaining);
+                return;
+            }
+            for (Listener listener : mListeners)
+                listener.onAuthenticationError(errMsgId, errString);
+        }
+
+        @Override
+        public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
+            if (!isCurrent())
+                return;
+            for (Listener listener : mListeners)
+                listener.onAuthenticationHelp(helpString);
+        }
+
+        @Override
+        public void onAuthenticationFailed() {
+            if (!isCurrent())
+                return;
+            for (Listener listener : mListeners)
+                listener.onAuthenticationFailed();
+        }
+
+        @Override
+        public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
+            if (!isCurrent())
+                return;
+            mCancellationSignal = null;
+            for (Listener listener : mListeners)
+                listener.onAuthenticationSucceeded();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.afollestad.digitus;
+
+import android.app.Activity;
+
+/**
+ * The UI shown by {@link Digitus#beginAuthentication()}, which renders an {@link AuthenticationEngine}.
+ * Each key name gets its own prompt. The dialog of the library module is used by default when it's
+ * on the classpath; headless apps can leave it out and use
+ * {@link Digitus#beginAuthentication(String, AuthenticationEngine.Listener)}, or supply their own
+ * prompt with {@link Digitus#setPromptFactory(Factory)}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface AuthenticationPrompt {
+
+    interface Factory {
+
+        AuthenticationPrompt create(String keyName);
+    }
+
+    /**
+     * @param lowLatencyAnimationMillis How long success and error states are shown in low latency
+     *                                  mode, or -1 if it's disabled. In low latency mode, the engine
+     *                                  is already listening and success is already reported.
+     */
+    void show(Activity activity, AuthenticationEngine engine, long lowLatencyAnimationMillis);
+
+    void dismiss();
+
+    void notifyPasswordValidation(boolean valid);
+
+    void notifyPasswordValidationTimedOut();
+
+    /**
+     * Prepares the prompt for the given Activity ahead of time, e.g. by inflating its views, see
+     * {@link Digitus#enableDialogPool()}.
+     */
+    void preload(Activity activity);
+
+    /**
+     * Drops whatever {@link #preload(Activity)} prepared.
+     */
+    void release();
+}
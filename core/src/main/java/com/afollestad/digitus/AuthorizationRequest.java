@@ -0,0 +1,26 @@
+package com.afollestad.digitus;
+
+/**
+ * A piece of work waiting for the user to authenticate, see
+ * {@link Digitus#beginAuthentication(String, AuthorizationRequest)}. Requests made while a prompt is
+ * already showing join it rather than showing another one, and all of them are answered together
+ * once it finishes.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface AuthorizationRequest {
+
+    /**
+     * The user has authenticated, so the work can go ahead. Called after
+     * {@link DigitusCallback#onDigitusAuthenticated()}, the same way: on the callback executor if one
+     * is set (see {@link Digitus#setCallbackExecutor(java.util.concurrent.Executor)}, which then has to
+     * run tasks in order), and held back along with it while no Activity is attached.
+     */
+    void onAuthorized();
+
+    /**
+     * The prompt went away without the user authenticating, or Digitus was deinitialized. Called on
+     * the callback executor if one is set.
+     */
+    void onAuthorizationCancelled();
+}
@@ -0,0 +1,29 @@
+package com.afollestad.digitus;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+
+/**
+ * Reported to {@link BatchSigner.Callback#onBatchSigningError(Exception)} when a new fingerprint had
+ * invalidated the batch signing key. The user has confirmed their password and the key pair has been
+ * replaced, but the batch wasn't signed: register the new public key with the server, then sign the
+ * batch again.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class BatchKeyInvalidatedException extends GeneralSecurityException {
+
+    private final PublicKey mPublicKey;
+
+    BatchKeyInvalidatedException(PublicKey publicKey) {
+        super("A new fingerprint invalidated the batch signing key, which has been replaced.");
+        mPublicKey = publicKey;
+    }
+
+    /**
+     * @return The public key of the replacement key pair.
+     */
+    public PublicKey getPublicKey() {
+        return mPublicKey;
+    }
+}
@@ -0,0 +1,19 @@
+package com.afollestad.digitus;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Optionally implemented by a {@link PayloadStore} which can write several records at once, e.g.
+ * with a single disk write. A {@link KeyRotation} then hands it each chunk in one call instead of
+ * record by record, and only checkpoints the chunk once the call has returned.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface BatchPayloadStore extends PayloadStore {
+
+    /**
+     * Writes all of the records, by ID, before returning.
+     */
+    void write(Map<String, byte[]> records) throws IOException;
+}
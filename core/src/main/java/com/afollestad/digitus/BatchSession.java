@@ -0,0 +1,95 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.support.annotation.Nullable;
+
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.List;
+
+/**
+ * A batch of challenges waiting on the prompt of a key name, see
+ * {@link BatchSigner#signBatch(String, List, BatchSigner.Callback)}. Its callback is called exactly
+ * once, when the session finishes or is cancelled.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class BatchSession {
+
+    private final BatchSigner mSigner;
+    private final MerkleTree mTree;
+    private final Signature mSignature;
+    private final BatchSigner.Callback mCallback;
+
+    private BatchSession(BatchSigner signer, MerkleTree tree, @Nullable Signature signature,
+                         BatchSigner.Callback callback) {
+        mSigner = signer;
+        mTree = tree;
+        mSignature = signature;
+        mCallback = callback;
+    }
+
+    /**
+     * @return The session, or null if the signature couldn't be prepared, which has been reported.
+     */
+    @Nullable
+    static BatchSession start(BatchSigner signer, List<byte[]> challenges, BatchSigner.Callback callback) {
+        Signature signature;
+        try {
+            signature = signer.initSignature();
+        } catch (KeyPermanentlyInvalidatedException e) {
+            // The user has to confirm their password before the key is replaced
+            signature = null;
+        } catch (GeneralSecurityException e) {
+            callback.onBatchSigningError(e);
+            return null;
+        }
+        return new BatchSession(signer, new MerkleTree(challenges), signature, callback);
+    }
+
+    /**
+     * @return True if a new fingerprint has invalidated the signing key, so the prompt has to ask for
+     * the password instead of a fingerprint.
+     */
+    boolean isKeyInvalidated() {
+        return mSignature == null;
+    }
+
+    /**
+     * @return The signature for the sensor to authorize, or null if the key is invalidated.
+     */
+    @Nullable
+    FingerprintManager.CryptoObject getCryptoObject() {
+        return mSignature != null ? new FingerprintManager.CryptoObject(mSignature) : null;
+    }
+
+    /**
+     * Signs the batch, or replaces an invalidated key now that the user has confirmed their password.
+     */
+    void finish(boolean withFingerprint) {
+        if (mSignature == null) {
+            // Nothing is signed with the new key until the server knows it
+            try {
+                mCallback.onBatchSigningError(new BatchKeyInvalidatedException(mSigner.regenerate()));
+            } catch (GeneralSecurityException e) {
+                mCallback.onBatchSigningError(e);
+            }
+        } else if (!withFingerprint) {
+            mCallback.onBatchSigningError(new IllegalStateException("A batch can only be signed with a fingerprint."));
+        } else {
+            try {
+                mCallback.onBatchSigned(mSigner.sign(mSignature, mTree));
+            } catch (GeneralSecurityException e) {
+                mCallback.onBatchSigningError(e);
+            }
+        }
+    }
+
+    void cancel(Exception reason) {
+        mCallback.onBatchSigningError(reason);
+    }
+}
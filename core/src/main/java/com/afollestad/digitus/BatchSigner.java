@@ -0,0 +1,140 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.KeyProperties;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.List;
+
+/**
+ * Signs batches of challenges with an EC key which requires fingerprint authentication for every
+ * use. A batch is signed through its {@link MerkleTree} root, so a single authentication approves all
+ * of its challenges, and each of them can be checked on its own with its {@link InclusionProof}. See
+ * {@link #signBatch(String, List, Callback)}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class BatchSigner {
+
+    public static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+    static final String CURVE = "secp256r1";
+
+    public interface Callback {
+
+        void onBatchSigned(SignedBatch batch);
+
+        void onBatchSigningError(Exception e);
+    }
+
+    private final KeyStoreCache mKeyStoreCache;
+    private final String mAlias;
+    private PrivateKey mPrivateKey;
+
+    /**
+     * Signs a batch of challenges, e.g. queued transactions, with a single fingerprint authentication.
+     * The dialog is shown as usual, but the sensor authorizes an EC signing key which is kept next to
+     * the key name's cipher key; the signature covers the root of a {@link MerkleTree} over the
+     * challenges. The result goes to the given callback instead of
+     * {@link DigitusCallback#onDigitusAuthenticated()}. Signing requires a fingerprint, so entering the
+     * password reports an error. If a new fingerprint has invalidated the signing key, the prompt asks
+     * for the password instead; once it's confirmed, the key pair is replaced and a
+     * {@link BatchKeyInvalidatedException} carrying the new public key is reported, so it can be
+     * registered with the server before the batch is signed again.
+     */
+    public static void signBatch(String keyName, List<byte[]> challenges, Callback callback) {
+        Digitus.invalidate(keyName).signBatchInternal(challenges, callback);
+    }
+
+    BatchSigner(KeyStoreCache keyStoreCache, String alias) {
+        mKeyStoreCache = keyStoreCache;
+        mAlias = alias;
+    }
+
+    /**
+     * @return A signature ready to be authorized by the fingerprint sensor, through a CryptoObject.
+     * The key is generated first if it doesn't exist.
+     * @throws KeyPermanentlyInvalidatedException If a new fingerprint has invalidated the key. It's
+     *                                            only replaced through {@link #regenerate()}, once the
+     *                                            user has confirmed their password.
+     */
+    Signature initSignature() throws GeneralSecurityException {
+        final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        try {
+            signature.initSign(privateKey());
+        } catch (KeyPermanentlyInvalidatedException e) {
+            mPrivateKey = null;
+            throw e;
+        }
+        return signature;
+    }
+
+    /**
+     * Replaces an invalidated key pair. The server still knows the old public key, so the new one
+     * has to be registered before anything signed with it can be checked.
+     *
+     * @return The new public key.
+     */
+    PublicKey regenerate() throws GeneralSecurityException {
+        generate();
+        return getPublicKey();
+    }
+
+    /**
+     * Signs the root of the tree with a signature the user has just authorized.
+     */
+    SignedBatch sign(Signature authorized, MerkleTree tree) throws GeneralSecurityException {
+        authorized.update(tree.getRoot());
+        return new SignedBatch(tree, authorized.sign(), getPublicKey());
+    }
+
+    /**
+     * @return The public key to register with the server, generating the key pair if needed.
+     */
+    public PublicKey getPublicKey() throws GeneralSecurityException {
+        final KeyStore keyStore = keyStore();
+        if (!keyStore.containsAlias(mAlias))
+            generate();
+        return keyStore.getCertificate(mAlias).getPublicKey();
+    }
+
+    private PrivateKey privateKey() throws GeneralSecurityException {
+        if (mPrivateKey == null) {
+            final KeyStore keyStore = keyStore();
+            if (!keyStore.containsAlias(mAlias))
+                generate();
+            mPrivateKey = (PrivateKey) keyStore.getKey(mAlias, null);
+        }
+        return mPrivateKey;
+    }
+
+    private KeyStore keyStore() throws GeneralSecurityException {
+        try {
+            return mKeyStoreCache.keyStore();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void generate() throws GeneralSecurityException {
+        mPrivateKey = null;
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance(
+                KeyProperties.KEY_ALGORITHM_EC, DigitusProviders.KEY_STORE);
+        generator.initialize(new KeyGenParameterSpec.Builder(mAlias, KeyProperties.PURPOSE_SIGN)
+                .setAlgorithmParameterSpec(new ECGenParameterSpec(CURVE))
+                .setDigests(KeyProperties.DIGEST_SHA256)
+                .setUserAuthenticationRequired(true)
+                .build());
+        generator.generateKeyPair();
+    }
+}
@@ -0,0 +1,43 @@
+package com.afollestad.digitus;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+
+/**
+ * Checks batches signed by a {@link BatchSigner} the way a server would, e.g. to test a backend
+ * integration locally. It only uses standard JCA classes.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class BatchVerifier {
+
+    private BatchVerifier() {
+    }
+
+    /**
+     * @return True if the signature over the batch root is valid for the public key.
+     */
+    public static boolean verifyRoot(PublicKey publicKey, byte[] root, byte[] signature) throws GeneralSecurityException {
+        final Signature verifier = Signature.getInstance(BatchSigner.SIGNATURE_ALGORITHM);
+        verifier.initVerify(publicKey);
+        verifier.update(root);
+        return verifier.verify(signature);
+    }
+
+    /**
+     * @return True if the proof leads from the challenge to the root.
+     */
+    public static boolean verifyInclusion(byte[] challenge, InclusionProof proof, byte[] root) {
+        return MessageDigest.isEqual(proof.computeRoot(challenge), root);
+    }
+
+    /**
+     * @return True if the challenge is part of a batch whose root was signed with the public key.
+     */
+    public static boolean verify(PublicKey publicKey, byte[] challenge, InclusionProof proof,
+                                 byte[] root, byte[] signature) throws GeneralSecurityException {
+        return verifyInclusion(challenge, proof, root) && verifyRoot(publicKey, root, signature);
+    }
+}
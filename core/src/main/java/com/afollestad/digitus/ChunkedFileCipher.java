@@ -0,0 +1,331 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypts files in fixed size chunks, each with its own IV, so that large files are processed in
+ * constant memory and random access reads only have to decrypt the chunks they touch.
+ * <p/>
+ * Every chunk is sealed with AES-GCM, authenticating the file's header, the chunk's index and
+ * whether it's the final chunk along with it. Chunks which were modified, swapped, reordered or cut
+ * off fail to decrypt with an {@link AEADBadTagException} instead of reading as garbage.
+ * <p/>
+ * The key must be usable for more than one operation, e.g. the session key unlocked by a fingerprint
+ * authentication. A keystore key which requires authentication for every use can't be used here,
+ * since every chunk re-initializes the Cipher. Instances are not thread safe.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public final class ChunkedFileCipher {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    /**
+     * The largest chunk size, which bounds the buffers of a {@link Reader} before any chunk is
+     * authenticated.
+     */
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAGIC = 0x44475453; // DGTS
+    private static final int VERSION = 2;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int FILE_ID_SIZE = 16;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + FILE_ID_SIZE;
+    private static final int BLOCK_SIZE = 16;
+    private static final int IV_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+
+    private final SecretKey mKey;
+    private final int mChunkSize;
+    private final Cipher mCipher;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    public ChunkedFileCipher(SecretKey key) throws GeneralSecurityException {
+        this(key, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize The amount of plaintext in each chunk, must be a positive multiple of 16 and
+     *                  at most {@link #MAX_CHUNK_SIZE}.
+     */
+    public ChunkedFileCipher(SecretKey key, int chunkSize) throws GeneralSecurityException {
+        if (chunkSize <= 0 || chunkSize % BLOCK_SIZE != 0)
+            throw new IllegalArgumentException("The chunk size must be a positive multiple of " + BLOCK_SIZE);
+        if (chunkSize > MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("The chunk size can't be larger than " + MAX_CHUNK_SIZE);
+        mKey = key;
+        mChunkSize = chunkSize;
+        mCipher = Cipher.getInstance(TRANSFORMATION);
+    }
+
+    /**
+     * The size of an encrypted chunk: its IV, its plaintext, and the authentication tag.
+     */
+    private static int recordSize(int plainSize) {
+        return IV_SIZE + plainSize + TAG_SIZE;
+    }
+
+    /**
+     * @return How many chunks a file of the given length is made of. Even an empty file has one, so
+     * its header is authenticated too.
+     */
+    private static long chunkCount(long length, int chunkSize) {
+        return Math.max(1, (length + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @return The size of the encrypted file, given its plaintext length.
+     */
+    private static long encryptedSize(long length, int chunkSize) {
+        return HEADER_SIZE + chunkCount(length, chunkSize) * (IV_SIZE + TAG_SIZE) + length;
+    }
+
+    /**
+     * Binds a chunk to the file's header and to its position, so it can't be moved or be passed off as
+     * the final chunk of a truncated file.
+     */
+    private static void updateAad(Cipher cipher, ByteBuffer header, long chunkIndex, boolean last) {
+        cipher.updateAAD(header.duplicate());
+        final ByteBuffer position = ByteBuffer.allocate(8 + 1);
+        position.putLong(chunkIndex).put((byte) (last ? 1 : 0));
+        position.flip();
+        cipher.updateAAD(position);
+    }
+
+    /**
+     * Encrypts the source file into the destination file, one chunk at a time.
+     */
+    public void encrypt(File source, File destination) throws IOException, GeneralSecurityException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(destination);
+            final FileChannel input = in.getChannel();
+            final FileChannel output = out.getChannel();
+
+            final long length = input.size();
+            final byte[] fileId = new byte[FILE_ID_SIZE];
+            mRandom.nextBytes(fileId);
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(mChunkSize).putLong(length).put(fileId);
+            header.flip();
+            writeFully(output, header.duplicate());
+
+            final long count = chunkCount(length, mChunkSize);
+            final ByteBuffer plain = ByteBuffer.allocate(mChunkSize);
+            final ByteBuffer record = ByteBuffer.allocate(recordSize(mChunkSize));
+            final byte[] iv = new byte[IV_SIZE];
+            for (long index = 0; index < count; index++) {
+                final boolean last = index == count - 1;
+                plain.clear();
+                plain.limit((int) Math.min(mChunkSize, length - index * mChunkSize));
+                while (plain.hasRemaining()) {
+                    if (input.read(plain) == -1)
+                        throw new IOException("The source file shrank while it was being encrypted.");
+                }
+                plain.flip();
+                mRandom.nextBytes(iv);
+                mCipher.init(Cipher.ENCRYPT_MODE, mKey, new GCMParameterSpec(TAG_SIZE * 8, iv));
+                updateAad(mCipher, header, index, last);
+                record.clear();
+                record.put(iv);
+                mCipher.doFinal(plain, record);
+                record.flip();
+                writeFully(output, record);
+            }
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Decrypts the whole source file into the destination file, one chunk at a time.
+     */
+    public void decrypt(File source, File destination) throws IOException, GeneralSecurityException {
+        Reader reader = null;
+        FileOutputStream out = null;
+        try {
+            reader = open(source);
+            out = new FileOutputStream(destination);
+            final FileChannel output = out.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate(reader.mChunkSize);
+            // An empty file still has its one chunk checked, which authenticates the header
+            if (reader.length() == 0)
+                reader.loadChunk(0);
+            long position = 0;
+            while (position < reader.length()) {
+                buffer.clear();
+                position += reader.read(position, buffer);
+                buffer.flip();
+                writeFully(output, buffer);
+            }
+        } finally {
+            closeQuietly(reader);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Opens an encrypted file for random access reads.
+     */
+    public Reader open(File encrypted) throws IOException {
+        return new Reader(new RandomAccessFile(encrypted, "r"));
+    }
+
+    /**
+     * Reads plaintext at arbitrary positions of an encrypted file, decrypting only the chunks which
+     * are touched. The last decrypted chunk is kept around, so sequential reads decrypt each chunk once.
+     */
+    public final class Reader implements Closeable {
+
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final int mChunkSize;
+        private final long mLength;
+        private final long mChunkCount;
+        private final ByteBuffer mHeader;
+        private final ByteBuffer mRecord;
+        private final ByteBuffer mPlain;
+        private long mChunkIndex = -1;
+
+        private Reader(RandomAccessFile file) throws IOException {
+            mFile = file;
+            mChannel = file.getChannel();
+            try {
+                mHeader = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(mChannel, mHeader, 0);
+                mHeader.flip();
+                final ByteBuffer header = mHeader.duplicate();
+                if (header.getInt() != MAGIC)
+                    throw new IOException("Not a file encrypted by ChunkedFileCipher.");
+                if (header.getInt() != VERSION)
+                    throw new IOException("Unsupported ChunkedFileCipher version, the file has to be encrypted again.");
+                mChunkSize = header.getInt();
+                mLength = header.getLong();
+                // The header isn't authenticated until the first chunk is, so nothing is allocated
+                // from it before it's known to be sane
+                if (mChunkSize <= 0 || mChunkSize % BLOCK_SIZE != 0 || mChunkSize > MAX_CHUNK_SIZE || mLength < 0)
+                    throw new IOException("Corrupt ChunkedFileCipher header.");
+                // The length is authenticated by every chunk, so a forged one is caught either way
+                if (mLength > mChannel.size())
+                    throw new EOFException("The encrypted file is truncated.");
+                final long expected = encryptedSize(mLength, mChunkSize);
+                if (mChannel.size() < expected)
+                    throw new EOFException("The encrypted file is truncated.");
+                if (mChannel.size() > expected)
+                    throw new IOException("The encrypted file has trailing data.");
+                mChunkCount = chunkCount(mLength, mChunkSize);
+            } catch (IOException e) {
+                closeQuietly(file);
+                throw e;
+            }
+            mRecord = ByteBuffer.allocate(recordSize(mChunkSize));
+            mPlain = ByteBuffer.allocate(mChunkSize);
+        }
+
+        /**
+         * @return The length of the plaintext.
+         */
+        public long length() {
+            return mLength;
+        }
+
+        /**
+         * Reads plaintext starting at the given position into the buffer.
+         *
+         * @return The number of bytes read, or -1 if the position is at or past the end.
+         */
+        public int read(long position, ByteBuffer destination) throws IOException, GeneralSecurityException {
+            if (position < 0)
+                throw new IllegalArgumentException("Negative position: " + position);
+            if (position >= mLength)
+                return -1;
+            int total = 0;
+            while (destination.hasRemaining() && position < mLength) {
+                final long chunkIndex = position / mChunkSize;
+                loadChunk(chunkIndex);
+                final int offset = (int) (position - chunkIndex * mChunkSize);
+                final ByteBuffer chunk = mPlain.duplicate();
+                chunk.position(offset);
+                if (chunk.remaining() > destination.remaining())
+                    chunk.limit(offset + destination.remaining());
+                final int count = chunk.remaining();
+                destination.put(chunk);
+                position += count;
+                total += count;
+            }
+            return total;
+        }
+
+        private void loadChunk(long chunkIndex) throws IOException, GeneralSecurityException {
+            if (chunkIndex == mChunkIndex)
+                return;
+            mChunkIndex = -1;
+            final boolean last = chunkIndex == mChunkCount - 1;
+            final int plainSize = (int) Math.min(mChunkSize, mLength - chunkIndex * mChunkSize);
+            final long offset = HEADER_SIZE + chunkIndex * (long) recordSize(mChunkSize);
+            if (offset + recordSize(plainSize) > mChannel.size())
+                throw new EOFException("The encrypted file is truncated.");
+            mRecord.clear();
+            mRecord.limit(recordSize(plainSize));
+            readFully(mChannel, mRecord, offset);
+            mRecord.flip();
+
+            final byte[] iv = new byte[IV_SIZE];
+            mRecord.get(iv);
+            mCipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(TAG_SIZE * 8, iv));
+            updateAad(mCipher, mHeader, chunkIndex, last);
+            mPlain.clear();
+            mCipher.doFinal(mRecord, mPlain);
+            mPlain.flip();
+            mChunkIndex = chunkIndex;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read == -1)
+                throw new EOFException("Unexpected end of the encrypted file.");
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
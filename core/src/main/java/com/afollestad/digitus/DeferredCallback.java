@@ -0,0 +1,116 @@
+package com.afollestad.digitus;
+
+import android.hardware.fingerprint.FingerprintManager;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands in for the callback while no Activity is attached, see {@link Digitus#detach(String)}, and
+ * hands what happened in the meantime to the next one. Readiness isn't kept, since attaching reports
+ * it anyway.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class DeferredCallback implements DigitusCryptoCallback {
+
+    /**
+     * An event held back until it can be delivered.
+     */
+    private interface Event {
+
+        void deliver(DigitusCallback callback);
+    }
+
+    private final List<Event> mEvents = new ArrayList<>();
+
+    @Override
+    public void onDigitusReady() {
+    }
+
+    @Override
+    public void onDigitusRegistrationNeeded() {
+        mEvents.add(new Event() {
+            @Override
+            public void deliver(DigitusCallback callback) {
+                callback.onDigitusRegistrationNeeded();
+            }
+        });
+    }
+
+    @Override
+    public void onDigitusAuthenticated() {
+        onDigitusAuthenticated(null);
+    }
+
+    @Override
+    public void onDigitusAuthenticated(@Nullable final FingerprintManager.CryptoObject cryptoObject) {
+        mEvents.add(new Event() {
+            @Override
+            public void deliver(DigitusCallback callback) {
+                DispatchingCallback.notifyAuthenticated(callback, cryptoObject);
+            }
+        });
+    }
+
+    @Override
+    public void onDigitusError(final Exception e) {
+        mEvents.add(new Event() {
+            @Override
+            public void deliver(DigitusCallback callback) {
+                callback.onDigitusError(e);
+            }
+        });
+    }
+
+    @Override
+    public void onDigitusValidatePassword(final String password) {
+        mEvents.add(new Event() {
+            @Override
+            public void deliver(DigitusCallback callback) {
+                callback.onDigitusValidatePassword(password);
+            }
+        });
+    }
+
+    /**
+     * Holds back work which has to follow the events before it, see
+     * {@link DispatchingCallback#run(DigitusCallback, Runnable)}.
+     */
+    void post(Runnable runnable) {
+        mEvents.add(new Posted(runnable));
+    }
+
+    void replay(DigitusCallback callback) {
+        for (Event event : mEvents)
+            event.deliver(callback);
+        mEvents.clear();
+    }
+
+    /**
+     * Runs the work held back by {@link #post(Runnable)} in order, and drops the events nobody is left
+     * to receive, e.g. once Digitus is deinitialized while detached.
+     */
+    void flush() {
+        for (Event event : mEvents) {
+            if (event instanceof Posted)
+                ((Posted) event).mRunnable.run();
+        }
+        mEvents.clear();
+    }
+
+    private static class Posted implements Event {
+
+        private final Runnable mRunnable;
+
+        Posted(Runnable runnable) {
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void deliver(DigitusCallback callback) {
+            DispatchingCallback.run(callback, mRunnable);
+        }
+    }
+}
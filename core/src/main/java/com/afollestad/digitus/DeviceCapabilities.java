@@ -0,0 +1,154 @@
+package com.afollestad.digitus;
+
+import android.Manifest;
+import android.app.Activity;
+import android.app.Application;
+import android.app.KeyguardManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+
+/**
+ * A snapshot of what the device can do for fingerprint authentication: the permission, a secure
+ * lock screen, the sensor and enrolled fingerprints. Reading these goes across process boundaries,
+ * so the snapshot is taken once and only taken again after something may have changed them: the
+ * user unlocking the device, a device policy change, or any Activity of the app resuming (e.g. after
+ * a trip to the security settings).
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@SuppressWarnings("ResourceType")
+public final class DeviceCapabilities {
+
+    private static final String ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED =
+            "android.app.action.DEVICE_POLICY_MANAGER_STATE_CHANGED";
+
+    private static volatile DeviceCapabilities mSnapshot;
+    private static boolean mWatching;
+
+    private final boolean mPermissionGranted;
+    private final boolean mKeyguardSecure;
+    private final boolean mHardwareDetected;
+    private final boolean mHasEnrolledFingerprints;
+
+    private DeviceCapabilities(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            mPermissionGranted = false;
+            mKeyguardSecure = false;
+            mHardwareDetected = false;
+            mHasEnrolledFingerprints = false;
+            return;
+        }
+        mPermissionGranted = context.checkPermission(Manifest.permission.USE_FINGERPRINT,
+                Process.myPid(), Process.myUid()) == PackageManager.PERMISSION_GRANTED;
+        mKeyguardSecure = ((KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE)).isKeyguardSecure();
+        final FingerprintManager fingerprintManager = context.getSystemService(FingerprintManager.class);
+        boolean hardwareDetected = false;
+        boolean hasEnrolledFingerprints = false;
+        if (mPermissionGranted && fingerprintManager != null) {
+            try {
+                hardwareDetected = fingerprintManager.isHardwareDetected();
+                hasEnrolledFingerprints = hardwareDetected && fingerprintManager.hasEnrolledFingerprints();
+            } catch (SecurityException ignored) {
+                // The permission was revoked between the check and the call
+            }
+        }
+        mHardwareDetected = hardwareDetected;
+        mHasEnrolledFingerprints = hasEnrolledFingerprints;
+    }
+
+    /**
+     * @return The current snapshot, taking a new one first if the last one may be out of date.
+     */
+    public static DeviceCapabilities get(Context context) {
+        DeviceCapabilities snapshot = mSnapshot;
+        if (snapshot == null) {
+            watch(context.getApplicationContext());
+            snapshot = new DeviceCapabilities(context);
+            mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Makes the next {@link #get(Context)} take a new snapshot.
+     */
+    public static void invalidate() {
+        mSnapshot = null;
+    }
+
+    private static synchronized void watch(Context context) {
+        if (mWatching)
+            return;
+        mWatching = true;
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_USER_PRESENT);
+        filter.addAction(ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED);
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        }, filter);
+        if (context instanceof Application) {
+            ((Application) context).registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+                @Override
+                public void onActivityResumed(Activity activity) {
+                    invalidate();
+                }
+
+                @Override
+                public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                }
+
+                @Override
+                public void onActivityStarted(Activity activity) {
+                }
+
+                @Override
+                public void onActivityPaused(Activity activity) {
+                }
+
+                @Override
+                public void onActivityStopped(Activity activity) {
+                }
+
+                @Override
+                public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+                }
+
+                @Override
+                public void onActivityDestroyed(Activity activity) {
+                }
+            });
+        }
+    }
+
+    public boolean isPermissionGranted() {
+        return mPermissionGranted;
+    }
+
+    public boolean isKeyguardSecure() {
+        return mKeyguardSecure;
+    }
+
+    public boolean isHardwareDetected() {
+        return mHardwareDetected;
+    }
+
+    public boolean hasEnrolledFingerprints() {
+        return mHasEnrolledFingerprints;
+    }
+
+    /**
+     * @return True if the sensor can be used to authenticate right now.
+     */
+    public boolean isFingerprintAuthAvailable() {
+        return mPermissionGranted && mHardwareDetected && mHasEnrolledFingerprints;
+    }
+}
@@ -0,0 +1,902 @@
+package com.afollestad.digitus;
+
+import android.Manifest;
+import android.app.Activity;
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.support.annotation.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * @author Aidan Follestad (afollestad)
+ */
+public class Digitus extends DigitusBase {
+
+    private static final String DEFAULT_PROMPT = "com.afollestad.digitus.google.DialogPrompt";
+
+    private int mRequestCode;
+    private AuthenticationPrompt mPrompt;
+    private boolean mPromptShown;
+    private AuthenticationEngine mEngine;
+    private boolean mDialogPoolEnabled;
+    private long mLowLatencyAnimationMillis = -1;
+    private long mLockedOutUntil;
+    private long mLockoutMillis = AuthenticationEngine.LOCKOUT_MILLIS;
+    private long mInitStarted;
+    private FingerprintSensor mFingerprintSensor;
+    private Executor mCallbackExecutor;
+    private BatchSigner mBatchSigner;
+    private SecureStore mStore;
+    private final List<AuthorizationRequest> mRequests = new ArrayList<>();
+    private boolean mPromptInFlight;
+    private BatchSession mBatch;
+
+    private static volatile DigitusMetrics mMetrics = DigitusMetrics.NO_OP;
+    private static volatile FingerprintSensor mSensorOverride;
+    private static volatile AuthenticationPrompt.Factory mPromptFactory;
+    private FingerprintManager.CryptoObject mCryptoObject;
+    private long mLastAuthenticated;
+    private PasswordValidator mPasswordValidator;
+    private Executor mPasswordExecutor;
+    private long mPasswordTimeout;
+
+    public static boolean notifyPasswordValidation(boolean valid) {
+        return invalidate().notifyPasswordValidationInternal(valid);
+    }
+
+    /**
+     * Same as {@link #notifyPasswordValidation(boolean)}, for the Digitus initialized with the given key name.
+     */
+    public static boolean notifyPasswordValidation(String keyName, boolean valid) {
+        return invalidate(keyName).notifyPasswordValidationInternal(valid);
+    }
+
+    private boolean notifyPasswordValidationInternal(boolean valid) {
+        if (!mPromptShown) return false;
+        mPrompt.notifyPasswordValidation(valid);
+        return true;
+    }
+
+    /**
+     * Checks passwords entered in the dialog with the given validator on the given executor, instead
+     * of asking {@link DigitusCallback#onDigitusValidatePassword(String)}.
+     *
+     * @param timeoutMillis How long to wait for the validator before letting the user try again, or
+     *                      0 to wait indefinitely.
+     */
+    public Digitus setPasswordValidator(PasswordValidator validator, Executor executor, long timeoutMillis) {
+        mPasswordValidator = validator;
+        mPasswordExecutor = executor;
+        mPasswordTimeout = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Called by the authentication dialog to check a password with the validator, if one is set. The
+     * result is reported back to the dialog on the main thread. Without a validator, the password goes
+     * to {@link DigitusCallback#onDigitusValidatePassword(String)} like every other event, i.e. on the
+     * callback executor, or held back while no Activity is attached.
+     *
+     * @return The pending validation, which the dialog cancels if it's dismissed, or null if no
+     * validator is set and the callback was asked to validate the password instead.
+     */
+    @Nullable
+    public static Future<Boolean> validatePassword(String keyName, String password) {
+        final Digitus digitus = invalidate(keyName);
+        if (digitus.mPasswordValidator == null) {
+            digitus.callback().onDigitusValidatePassword(password);
+            return null;
+        }
+        return new PasswordValidation(digitus.mPasswordValidator, password, new PasswordValidation.Listener() {
+            @Override
+            public void onPasswordValidated(boolean valid) {
+                digitus.notifyPasswordValidationInternal(valid);
+            }
+
+            @Override
+            public void onPasswordValidationTimedOut() {
+                if (digitus.mPromptShown)
+                    digitus.mPrompt.notifyPasswordValidationTimedOut();
+            }
+        }).start(digitus.mPasswordExecutor, digitus.mPasswordTimeout);
+    }
+
+    public static boolean openSecuritySettings() {
+        invalidate();
+        if (!(mInstance.mCallback instanceof Activity))
+            return false;
+        // Whatever the user changes there is picked up when the Activity resumes
+        ((Activity) mInstance.mCallback).startActivity(new Intent(Settings.ACTION_SECURITY_SETTINGS));
+        return true;
+    }
+
+    private <T extends Activity & DigitusCallback> Digitus(T context, String keyName) {
+        super(context, keyName);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mKeyguardManager = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
+            mFingerprintManager = context.getSystemService(FingerprintManager.class);
+            mProviders = DigitusProviders.acquire();
+            mKeyStore = mProviders.mKeyStore;
+            mKeyStoreCache = mProviders.mKeyStoreCache;
+            mKeyGenerator = mProviders.mKeyGenerator;
+            mCipher = mProviders.mCipher;
+        }
+    }
+
+    /**
+     * Initializes Digitus for the given key name. Each key name gets its own entry, with its own
+     * cipher, dialog and callback, so several keys can be in use at the same time. Initializing a key
+     * name again from the same callback reuses the existing entry rather than rebuilding it.
+     * <p/>
+     * The static methods which don't take a key name act on the key name that was initialized last.
+     */
+    public static <T extends Activity & DigitusCallback> Digitus init(T context, String keyName, int requestCode) {
+        return init(context, keyName, requestCode, 0);
+    }
+
+    /**
+     * Same as {@link #init(Activity, String, int)}, but the key stays unlocked for the given number of
+     * seconds after the user authenticates. Within that window, {@link #beginAuthentication()}
+     * reports success right away without showing the dialog. A duration of 0 requires
+     * authentication for every use of the key.
+     */
+    public static <T extends Activity & DigitusCallback> Digitus init(T context, String keyName, int requestCode,
+                                                                      int validityDurationSeconds) {
+        return init(context, keyName, requestCode, new DigitusKeySpec.Builder()
+                .validityDurationSeconds(validityDurationSeconds)
+                .build());
+    }
+
+    /**
+     * Same as {@link #init(Activity, String, int)}, with the key and cipher described by the given
+     * spec, e.g. AES-GCM or a StrongBox-backed key. An existing key generated with different settings
+     * is replaced.
+     */
+    public static <T extends Activity & DigitusCallback> Digitus init(T context, String keyName, int requestCode,
+                                                                      DigitusKeySpec keySpec) {
+        Digitus existing = mRegistry.get(keyName);
+        if (existing != null) {
+            if (existing.mCallback == context && existing.mIsReady && existing.mKeySpec.equals(keySpec)) {
+                mInstance = existing;
+                existing.callback().onDigitusReady();
+                return existing;
+            }
+            existing.deinitInternal();
+        }
+
+        final long initStarted = System.nanoTime();
+        final Digitus digitus = new Digitus(context, keyName);
+        digitus.mInitStarted = initStarted;
+        digitus.mKeySpec = keySpec;
+        digitus.mValiditySeconds = keySpec.getValiditySeconds();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && !DigitusProviders.TRANSFORMATION.equals(keySpec.getTransformation())) {
+            // The pooled cipher only does the default transformation
+            try {
+                digitus.mCipher = Cipher.getInstance(keySpec.getTransformation());
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                throw new RuntimeException("Failed to get an instance of Cipher", e);
+            }
+        }
+        mRegistry.put(keyName, digitus);
+        mInstance = digitus;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            digitus.mRequestCode = requestCode;
+            int granted = context.checkSelfPermission(Manifest.permission.USE_FINGERPRINT);
+            if (granted != PackageManager.PERMISSION_GRANTED)
+                context.requestPermissions(new String[]{Manifest.permission.USE_FINGERPRINT}, requestCode);
+            else digitus.finishInit();
+        } else digitus.finishInit();
+        return digitus;
+    }
+
+    /**
+     * Attaches an Activity to the Digitus of the given key name, keeping its providers, key, engine
+     * and dialog from before, e.g. when the Activity was recreated for a configuration change or
+     * resumes after a trip to the settings. Only the callback changes: events which happened while
+     * detached are delivered to it, and it's told whether Digitus is ready. If there's nothing to
+     * attach to, this is the same as {@link #init(Activity, String, int)}.
+     * <p/>
+     * Pair it with {@link #detach(String)} in onPause, and call {@link #deinit(String)} only once the
+     * key name isn't needed anymore, e.g. when the Activity is finishing.
+     */
+    public static <T extends Activity & DigitusCallback> Digitus attach(T context, String keyName, int requestCode) {
+        final Digitus existing = mRegistry.get(keyName);
+        if (existing == null)
+            return init(context, keyName, requestCode);
+        existing.reattach(context, requestCode);
+        return existing;
+    }
+
+    /**
+     * Detaches the Activity from the Digitus initialized last, see {@link #detach(String)}.
+     */
+    public static void detach() {
+        if (mInstance != null)
+            mInstance.detachInternal();
+    }
+
+    /**
+     * Lets go of the Activity attached to the Digitus of the given key name, without tearing anything
+     * else down. Until another Activity is attached, callbacks are held back.
+     */
+    public static void detach(String keyName) {
+        final Digitus digitus = mRegistry.get(keyName);
+        if (digitus != null)
+            digitus.detachInternal();
+    }
+
+    private void detachInternal() {
+        if (!(mCallback instanceof DeferredCallback))
+            mCallback = new DeferredCallback();
+    }
+
+    private <T extends Activity & DigitusCallback> void reattach(T context, int requestCode) {
+        final DigitusCallback previous = mCallback;
+        mCallback = context;
+        mInstance = this;
+        if (mDialogPoolEnabled) {
+            // The pooled views belong to the old Activity
+            mPrompt.release();
+            mPrompt.preload(context);
+        }
+        if (mIsReady) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || isFingerprintRegisteredInternal()) {
+                callback().onDigitusReady();
+            } else {
+                // Fingerprints were removed while the Activity was away
+                mIsReady = false;
+                callback().onDigitusRegistrationNeeded();
+            }
+        } else if (DeviceCapabilities.get(mAppContext).isPermissionGranted()) {
+            // E.g. back from enrolling a fingerprint in the settings; the time spent there isn't init
+            mInitStarted = System.nanoTime();
+            finishInit();
+        } else {
+            // Still waiting for the permission, the new Activity will get the result
+            mRequestCode = requestCode;
+        }
+        if (previous instanceof DeferredCallback)
+            ((DeferredCallback) previous).replay(callback());
+    }
+
+    /**
+     * Delivers {@link DigitusCallback} events for this key name on the given executor, e.g. a worker
+     * thread which can start decrypting right after authentication, rather than on the main thread.
+     * Implement {@link DigitusCryptoCallback} to receive the authorized CryptoObject with the success
+     * event. Pass null to go back to the main thread. See also {@link #enableLowLatency(long)}, which
+     * stops holding success back for the dialog's animation.
+     */
+    public Digitus setCallbackExecutor(@Nullable Executor executor) {
+        mCallbackExecutor = executor;
+        return this;
+    }
+
+    /**
+     * @return The callback to deliver events to, through the callback executor if there is one.
+     */
+    private DigitusCallback callback() {
+        // Held back events are replayed on the main thread, and dispatched from there
+        if (mCallbackExecutor == null || mCallback instanceof DeferredCallback)
+            return mCallback;
+        return new DispatchingCallback(mCallback, mCallbackExecutor);
+    }
+
+    private Activity attachedActivity() {
+        if (!(mCallback instanceof Activity))
+            throw new IllegalStateException("No Activity is attached to " + mKeyName + ", see Digitus.attach().");
+        return (Activity) mCallback;
+    }
+
+    /**
+     * @return The Digitus initialized with the given key name, or null if there is none.
+     */
+    public static Digitus get(String keyName) {
+        return mRegistry.get(keyName);
+    }
+
+    public static void deinit() {
+        if (mInstance == null) return;
+        mInstance.deinitInternal();
+    }
+
+    /**
+     * Deinitializes the Digitus initialized with the given key name, leaving other key names untouched.
+     */
+    public static void deinit(String keyName) {
+        Digitus digitus = mRegistry.get(keyName);
+        if (digitus != null)
+            digitus.deinitInternal();
+    }
+
+    private void deinitInternal() {
+        mRegistry.remove(mKeyName, this);
+        SessionKeyCache.get().evict(mKeyName);
+        if (mInstance == this) mInstance = null;
+        if (mPrompt != null) {
+            if (mPromptShown) mPrompt.dismiss();
+            mPrompt.release();
+        }
+        mPrompt = null;
+        mPromptShown = false;
+        mDialogPoolEnabled = false;
+        stopEngine();
+        mCryptoObject = null;
+        if (mBatch != null)
+            mBatch.cancel(new IllegalStateException("Digitus was deinitialized."));
+        mBatch = null;
+        mBatchSigner = null;
+        if (mStore != null) mStore.close();
+        mStore = null;
+        mPromptInFlight = false;
+        if (mCallback instanceof DeferredCallback) {
+            // No Activity will be attached anymore, but requests authorized in the meantime are still answered
+            ((DeferredCallback) mCallback).flush();
+        }
+        drainRequests(false);
+        mRequestCode = 0;
+        deinitBase();
+    }
+
+    private void finishInit() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            if (isFingerprintRegisteredInternal()) {
+                mIsReady = true;
+                mKeyLifecycle.ensureKey();
+                recordReady();
+                callback().onDigitusReady();
+            } else {
+                callback().onDigitusRegistrationNeeded();
+            }
+        } else {
+            mIsReady = true;
+            recordReady();
+            callback().onDigitusReady();
+        }
+    }
+
+    private void recordReady() {
+        mMetrics.onPhase(mKeyName, DigitusMetrics.Phase.INIT_TO_READY, System.nanoTime() - mInitStarted);
+    }
+
+    /**
+     * Replaces the device's fingerprint sensor for prompts started from now on, e.g. with a
+     * {@link SimulatedFingerprintSensor} in tests. Pass null to go back to the real sensor.
+     */
+    public static void setFingerprintSensor(@Nullable FingerprintSensor sensor) {
+        mSensorOverride = sensor;
+    }
+
+    /**
+     * Replaces the prompt shown by {@link #beginAuthentication()} for key names initialized from now
+     * on. Pass null to go back to the dialog of the library module.
+     */
+    public static void setPromptFactory(@Nullable AuthenticationPrompt.Factory factory) {
+        mPromptFactory = factory;
+    }
+
+    private AuthenticationPrompt prompt() {
+        if (mPrompt == null) {
+            final AuthenticationPrompt.Factory factory = mPromptFactory;
+            mPrompt = factory != null ? factory.create(mKeyName) : createDefaultPrompt(mKeyName);
+        }
+        return mPrompt;
+    }
+
+    /**
+     * The dialog lives in the library module, which headless apps leave out, so it's looked up by name.
+     */
+    private static AuthenticationPrompt createDefaultPrompt(String keyName) {
+        try {
+            return (AuthenticationPrompt) Class.forName(DEFAULT_PROMPT)
+                    .getConstructor(String.class).newInstance(keyName);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("No prompt is available for " + keyName + ". Depend on the " +
+                    "library module for the dialog, set one with setPromptFactory(), or use " +
+                    "beginAuthentication(String, AuthenticationEngine.Listener).", e);
+        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException
+                | InvocationTargetException e) {
+            throw new RuntimeException("Failed to create the dialog of " + keyName, e);
+        }
+    }
+
+    @Nullable
+    private FingerprintSensor sensor() {
+        if (mSensorOverride != null)
+            return mSensorOverride;
+        if (mFingerprintSensor == null && mFingerprintManager != null)
+            mFingerprintSensor = new SystemFingerprintSensor(mAppContext);
+        return mFingerprintSensor;
+    }
+
+    /**
+     * Sets where timings and outcomes of authentications are reported, see {@link HistogramMetrics}.
+     * Nothing is recorded by default.
+     */
+    public static void setMetrics(@Nullable DigitusMetrics metrics) {
+        mMetrics = metrics != null ? metrics : DigitusMetrics.NO_OP;
+    }
+
+    public static void handleResult(int requestCode, String[] permissions, int[] state) {
+        if (permissions == null || permissions.length == 0 ||
+                !permissions[0].equals(Manifest.permission.USE_FINGERPRINT))
+            return;
+        DeviceCapabilities.invalidate();
+        for (Digitus digitus : mRegistry.values()) {
+            if (digitus.mRequestCode != requestCode || digitus.mIsReady)
+                continue;
+            if (state[0] == PackageManager.PERMISSION_GRANTED) {
+                digitus.finishInit();
+            } else {
+                digitus.callback().onDigitusError(new PermissionDeniedError());
+            }
+        }
+    }
+
+    /**
+     * Enables envelope mode for this key name. The fingerprint key then only wraps a software data
+     * key, which is unlocked by a successful fingerprint authentication and kept in the
+     * {@link SessionKeyCache} for the given amount of time, see {@link #getSessionKey()}.
+     */
+    public Digitus enableEnvelope(long sessionKeyTtlMillis) {
+        if (sessionKeyTtlMillis <= 0)
+            throw new IllegalArgumentException("The session key's time to live must be positive.");
+        mEnvelope.setTtl(sessionKeyTtlMillis);
+        return this;
+    }
+
+    /**
+     * Sets how long the sensor is left alone after it reports a lockout, for devices which lock it out
+     * for longer than {@link AuthenticationEngine#LOCKOUT_MILLIS}. The lockout is remembered across
+     * prompts of this key name, so reopening the prompt doesn't arm the sensor early.
+     */
+    public Digitus setLockoutDuration(long lockoutMillis) {
+        if (lockoutMillis <= 0)
+            throw new IllegalArgumentException("The lockout duration must be positive.");
+        mLockoutMillis = lockoutMillis;
+        return this;
+    }
+
+    /**
+     * Keeps the authentication dialog's views inflated between prompts for this key name. They are
+     * pre-inflated the next time the main thread is idle, so even the first prompt usually skips
+     * inflation; later prompts reuse the same views after their state is reset.
+     */
+    public Digitus enableDialogPool() {
+        if (!mDialogPoolEnabled) {
+            prompt().preload(attachedActivity());
+            mDialogPoolEnabled = true;
+        }
+        return this;
+    }
+
+    /**
+     * Enables low latency mode for this key name. The fingerprint sensor is armed as soon as
+     * {@link #beginAuthentication()} is called rather than once the dialog is drawn, and
+     * {@link DigitusCallback#onDigitusAuthenticated()} is called as soon as a fingerprint is
+     * recognized rather than after the dialog's success animation.
+     *
+     * @param animationMillis How long the dialog keeps showing the success or error state before it
+     *                        goes away or switches to the password screen, 0 for no delay.
+     */
+    public Digitus enableLowLatency(long animationMillis) {
+        if (animationMillis < 0)
+            throw new IllegalArgumentException("The animation duration can't be negative.");
+        mLowLatencyAnimationMillis = animationMillis;
+        return this;
+    }
+
+    /**
+     * @return The data key unlocked by the last fingerprint authentication in envelope mode, or null
+     * if it hasn't been unlocked yet or has been evicted since.
+     */
+    @Nullable
+    public static SecretKey getSessionKey() {
+        return SessionKeyCache.get().getKey(invalidate().mKeyName);
+    }
+
+    /**
+     * Same as {@link #getSessionKey()}, for the Digitus initialized with the given key name.
+     */
+    @Nullable
+    public static SecretKey getSessionKey(String keyName) {
+        return SessionKeyCache.get().getKey(keyName);
+    }
+
+    /**
+     * @return The encrypted key-value store of the given key name, which needs envelope mode and can
+     * only be read or written while the session key is unlocked. The store is closed, and its cache
+     * of decrypted values wiped, on deinit.
+     * @see #enableEnvelope(long)
+     */
+    public static SecureStore getStore(String keyName) {
+        return getStore(keyName, SecureStore.DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Same as {@link #getStore(String)}, with the given size of the decrypted value cache, in bytes.
+     * The size only applies when the store is first opened.
+     */
+    public static SecureStore getStore(String keyName, int cacheBytes) {
+        if (cacheBytes <= 0)
+            throw new IllegalArgumentException("The cache size must be positive.");
+        final Digitus digitus = invalidate(keyName);
+        if (!digitus.mEnvelope.isEnabled())
+            throw new IllegalStateException("Envelope mode isn't enabled for " + keyName + ", see enableEnvelope().");
+        if (digitus.mStore == null)
+            digitus.mStore = new SecureStore(digitus.mAppContext, keyName, cacheBytes);
+        return digitus.mStore;
+    }
+
+    /**
+     * Called by the authentication dialog once the user has been authenticated.
+     *
+     * @param withFingerprint True if the fingerprint sensor authenticated the user, false if they
+     *                        entered their password.
+     */
+    public static void notifyAuthenticated(String keyName, boolean withFingerprint) {
+        final Digitus digitus = invalidate(keyName);
+        if (digitus.mBatch != null) {
+            digitus.finishBatch(withFingerprint);
+            return;
+        }
+        FingerprintManager.CryptoObject authorized = null;
+        if (withFingerprint) {
+            digitus.mLastAuthenticated = SystemClock.elapsedRealtime();
+            authorized = digitus.mCryptoObject;
+            if (authorized == null && digitus.mValiditySeconds > 0 && digitus.initCipher() && digitus.mCipherUsable) {
+                // The time-bound key has just been unlocked by the fingerprint
+                authorized = new FingerprintManager.CryptoObject(digitus.mCipher);
+            }
+        }
+        digitus.notifyAuthenticatedInternal(authorized);
+    }
+
+    private void notifyAuthenticatedInternal(@Nullable FingerprintManager.CryptoObject authorized) {
+        mCryptoObject = null;
+        if (mEnvelope.isEnabled() && authorized != null) {
+            try {
+                mEnvelope.unlock(authorized.getCipher());
+            } catch (GeneralSecurityException e) {
+                // The user is still authenticated, but there's no session key to go with it
+                callback().onDigitusError(e);
+            }
+        } else if (mEnvelope.isEnabled() && mEnvelope.isRecoveryNeeded()) {
+            // E.g. the password replaced an invalidated key, and can recover the session key right away
+            callback().onDigitusError(new SessionKeyLostException(mKeyName));
+        }
+        mPromptInFlight = false;
+        mPromptShown = false;
+        stopEngine();
+        DispatchingCallback.notifyAuthenticated(callback(), authorized);
+        drainRequests(true);
+    }
+
+    /**
+     * Answers every request waiting on the prompt that just finished, in the order they were made.
+     */
+    private void drainRequests(final boolean authorized) {
+        if (mRequests.isEmpty()) return;
+        final List<AuthorizationRequest> requests = new ArrayList<>(mRequests);
+        mRequests.clear();
+        final Runnable answer = new Runnable() {
+            @Override
+            public void run() {
+                for (AuthorizationRequest request : requests) {
+                    if (authorized) request.onAuthorized();
+                    else request.onAuthorizationCancelled();
+                }
+            }
+        };
+        // Answered the way the success before them was delivered, so they can't overtake it
+        final DigitusCallback callback = callback();
+        if (authorized && callback instanceof DeferredCallback)
+            ((DeferredCallback) callback).post(answer);
+        else DispatchingCallback.run(callback, answer);
+    }
+
+    /**
+     * Called by the authentication dialog when it goes away without the user authenticating.
+     */
+    public static void notifyAuthenticationCancelled(String keyName) {
+        final Digitus digitus = mRegistry.get(keyName);
+        if (digitus == null || !digitus.mPromptInFlight)
+            return;
+        digitus.mPromptInFlight = false;
+        digitus.mPromptShown = false;
+        digitus.mCryptoObject = null;
+        digitus.stopEngine();
+        if (digitus.mBatch != null) {
+            final BatchSession batch = digitus.mBatch;
+            digitus.mBatch = null;
+            batch.cancel(new IllegalStateException("The prompt was cancelled."));
+        }
+        digitus.drainRequests(false);
+    }
+
+    /**
+     * Shows the prompt for a batch, see {@link BatchSigner#signBatch(String, List, BatchSigner.Callback)}.
+     */
+    void signBatchInternal(List<byte[]> challenges, BatchSigner.Callback callback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            callback.onBatchSigningError(new UnsupportedOperationException("Batch signing requires Marshmallow."));
+            return;
+        }
+        if (mPromptInFlight) {
+            // The prompt that's showing authorizes a different key, so it can't be joined
+            callback.onBatchSigningError(new IllegalStateException("Another prompt is already showing."));
+            return;
+        }
+        if (mBatchSigner == null)
+            mBatchSigner = new BatchSigner(mKeyStoreCache, mKeyName + "_batch");
+        final BatchSession batch = BatchSession.start(mBatchSigner, challenges, callback);
+        if (batch == null)
+            return;
+        mBatch = batch;
+        try {
+            beginAuthenticationInternal();
+        } catch (RuntimeException e) {
+            // Without a prompt the batch would never finish, and would take over the next prompt
+            mBatch = null;
+            mPromptInFlight = false;
+            mCryptoObject = null;
+            stopEngine();
+            batch.cancel(e);
+        }
+    }
+
+    private void finishBatch(boolean withFingerprint) {
+        final BatchSession batch = mBatch;
+        mBatch = null;
+        mCryptoObject = null;
+        mPromptInFlight = false;
+        mPromptShown = false;
+        stopEngine();
+        if (withFingerprint)
+            mLastAuthenticated = SystemClock.elapsedRealtime();
+        batch.finish(withFingerprint);
+        // Requests which joined the prompt only needed the user to authenticate, which they did
+        drainRequests(true);
+    }
+
+    /**
+     * Shows the authentication dialog, unless one is already showing for this key name, in which
+     * case the call joins it.
+     */
+    public static void beginAuthentication() {
+        invalidate().beginAuthenticationInternal();
+    }
+
+    /**
+     * Same as {@link #beginAuthentication()}, for the Digitus initialized with the given key name.
+     */
+    public static void beginAuthentication(String keyName) {
+        invalidate(keyName).beginAuthenticationInternal();
+    }
+
+    /**
+     * Same as {@link #beginAuthentication(String)}, and the request is answered once the prompt
+     * finishes. Requests made while a prompt is showing join it, so any number of them are answered
+     * by a single authentication.
+     */
+    public static void beginAuthentication(String keyName, AuthorizationRequest request) {
+        final Digitus digitus = invalidate(keyName);
+        digitus.mRequests.add(request);
+        try {
+            digitus.beginAuthenticationInternal();
+        } catch (RuntimeException e) {
+            // The caller hears about the failure from the exception, the request isn't answered later on
+            digitus.mRequests.remove(request);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts authenticating without the dialog, e.g. to drive a prompt embedded in an existing layout.
+     * The sensor is armed right away and the listener receives everything the engine publishes.
+     * A successful fingerprint is reported to the {@link DigitusCallback} as usual. In the
+     * {@link Stage#PASSWORD} and {@link Stage#NEW_FINGERPRINT_ENROLLED} stages, it's up to the caller
+     * to collect and check the password, then call {@link #notifyAuthenticated(String, boolean)}
+     * (and {@link #recreateKey(String)} if a new fingerprint was enrolled).
+     *
+     * @return The engine, or null if the user is still authenticated from a recent authentication
+     * and has already been reported as such.
+     */
+    @Nullable
+    public static AuthenticationEngine beginAuthentication(String keyName, AuthenticationEngine.Listener listener) {
+        final Digitus digitus = invalidate(keyName);
+        if (digitus.authenticateWithinValidityWindow())
+            return null;
+        final AuthenticationEngine engine = digitus.prepareEngine();
+        engine.addListener(listener);
+        digitus.notifyOnSuccess(engine);
+        if (!engine.startListening() && engine.getStage() == Stage.FINGERPRINT)
+            engine.goToBackup();
+        return engine;
+    }
+
+    private void beginAuthenticationInternal() {
+        if (mPromptInFlight)
+            return;
+        if (authenticateWithinValidityWindow())
+            return;
+        final Activity context = attachedActivity();
+        final AuthenticationPrompt prompt = prompt();
+        mPromptInFlight = true;
+        final AuthenticationEngine engine = prepareEngine();
+        if (mLowLatencyAnimationMillis >= 0) {
+            notifyOnSuccess(engine);
+            engine.startListening();
+        }
+        prompt.show(context, engine, mLowLatencyAnimationMillis);
+        mPromptShown = true;
+    }
+
+    /**
+     * Reports a successful fingerprint as soon as the engine does, without waiting for any UI.
+     */
+    private void notifyOnSuccess(final AuthenticationEngine engine) {
+        engine.addListener(new AuthenticationEngine.SimpleListener() {
+            @Override
+            public void onAuthenticationSucceeded() {
+                if (mEngine == engine)
+                    notifyAuthenticated(mKeyName, true);
+            }
+        });
+    }
+
+    /**
+     * Reports success right away if the time-bound key is still unlocked from a recent authentication.
+     */
+    private boolean authenticateWithinValidityWindow() {
+        if (mBatch == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && isWithinValidityWindow()
+                && initCipher() && mCipherUsable) {
+            notifyAuthenticatedInternal(new FingerprintManager.CryptoObject(mCipher));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops the engine of the prompt that just finished, so a fingerprint arriving late can't finish
+     * it a second time.
+     */
+    private void stopEngine() {
+        if (mEngine != null) mEngine.stopListening();
+        mEngine = null;
+    }
+
+    /**
+     * Sets up a new engine for a prompt, with the crypto object and the stage it starts in.
+     */
+    private AuthenticationEngine prepareEngine() {
+        if (mEngine != null)
+            mEngine.stopListening();
+        final AuthenticationEngine engine = new AuthenticationEngine(sensor());
+        mEngine = engine;
+        // The lockout outlives the prompt it happened in
+        engine.setLockoutDuration(mLockoutMillis);
+        engine.setLockedOutUntil(mLockedOutUntil);
+        engine.addListener(new AuthenticationEngine.SimpleListener() {
+            @Override
+            public void onLockout(long remainingMillis) {
+                mLockedOutUntil = engine.getLockedOutUntil();
+            }
+        });
+        if (mMetrics != DigitusMetrics.NO_OP)
+            mEngine.addListener(new MetricsListener(mKeyName, mMetrics));
+        mCryptoObject = null;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            mEngine.setStage(Stage.PASSWORD);
+        } else if (mBatch != null && mBatch.isKeyInvalidated()) {
+            // A new fingerprint invalidated the signing key, which is only replaced after the password
+            mEngine.setStage(Stage.NEW_FINGERPRINT_ENROLLED);
+        } else if (mBatch != null) {
+            mCryptoObject = mBatch.getCryptoObject();
+            mEngine.setCryptoObject(mCryptoObject);
+            mEngine.setStage(Stage.FINGERPRINT);
+        } else if (initCipher()) {
+            // A time-bound key can't back a crypto object, the sensor unlocks it for the whole window instead
+            mCryptoObject = mValiditySeconds > 0 ? null : new FingerprintManager.CryptoObject(mCipher);
+            mEngine.setCryptoObject(mCryptoObject);
+            mEngine.setStage(Stage.FINGERPRINT);
+        } else {
+            mCryptoObject = mValiditySeconds > 0 ? null : new FingerprintManager.CryptoObject(mCipher);
+            mEngine.setCryptoObject(mCryptoObject);
+            mEngine.setStage(Stage.NEW_FINGERPRINT_ENROLLED);
+        }
+        return mEngine;
+    }
+
+    private boolean isWithinValidityWindow() {
+        return mValiditySeconds > 0 && mLastAuthenticated > 0 &&
+                SystemClock.elapsedRealtime() - mLastAuthenticated < mValiditySeconds * 1000L;
+    }
+
+    public static boolean isFingerprintRegistered() {
+        return invalidate().isFingerprintRegisteredInternal();
+    }
+
+    private boolean isFingerprintRegisteredInternal() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return false;
+        final DeviceCapabilities capabilities = DeviceCapabilities.get(mAppContext);
+        if (!capabilities.isPermissionGranted() || !capabilities.isKeyguardSecure())
+            return false;
+        if (mSensorOverride != null)
+            return mSensorOverride.hasEnrolledFingerprints();
+        return capabilities.hasEnrolledFingerprints();
+    }
+
+    /**
+     * Times the phases of a single prompt, from the moment its engine is prepared.
+     */
+    private static class MetricsListener implements AuthenticationEngine.Listener {
+
+        private final String mKeyName;
+        private final DigitusMetrics mMetrics;
+        private final long mBegan = System.nanoTime();
+        private long mArmed;
+
+        MetricsListener(String keyName, DigitusMetrics metrics) {
+            mKeyName = keyName;
+            mMetrics = metrics;
+        }
+
+        @Override
+        public void onStageChanged(Stage stage) {
+        }
+
+        @Override
+        public void onListening() {
+            final long now = System.nanoTime();
+            // Only the first arming is part of beginning the authentication, later ones are re-arms.
+            if (mArmed == 0)
+                mMetrics.onPhase(mKeyName, DigitusMetrics.Phase.BEGIN_TO_ARMED, now - mBegan);
+            mArmed = now;
+        }
+
+        @Override
+        public void onAuthenticationHelp(CharSequence helpString) {
+            mMetrics.onOutcome(mKeyName, DigitusMetrics.Outcome.HELP);
+        }
+
+        @Override
+        public void onAuthenticationFailed() {
+            mMetrics.onOutcome(mKeyName, DigitusMetrics.Outcome.FAILED);
+        }
+
+        @Override
+        public void onAuthenticationError(int errorCode, CharSequence errString) {
+            mMetrics.onOutcome(mKeyName, DigitusMetrics.Outcome.ERROR);
+        }
+
+        @Override
+        public void onLockout(long remainingMillis) {
+            mMetrics.onOutcome(mKeyName, DigitusMetrics.Outcome.LOCKOUT);
+        }
+
+        @Override
+        public void onAuthenticationSucceeded() {
+            mMetrics.onOutcome(mKeyName, DigitusMetrics.Outcome.SUCCEEDED);
+            mMetrics.onPhase(mKeyName, DigitusMetrics.Phase.ARMED_TO_AUTHENTICATED, System.nanoTime() - mArmed);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.Context;
+import android.app.KeyguardManager;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.UserNotAuthenticatedException;
+
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class DigitusBase {
+
+    protected static final ConcurrentMap<String, Digitus> mRegistry = new ConcurrentHashMap<>();
+    protected static Digitus mInstance;
+
+    protected <T extends Activity & DigitusCallback> DigitusBase(T context, String keyName) {
+        mKeyName = keyName;
+        mCallback = context;
+        mAppContext = context.getApplicationContext();
+        mKeyLifecycle = new KeyLifecycle(this);
+        mEnvelope = new EnvelopeKey(context, keyName);
+    }
+
+    protected void deinitBase() {
+        mCallback = null;
+        mKeyguardManager = null;
+        mFingerprintManager = null;
+        if (mKeyStoreCache != null)
+            mKeyStoreCache.invalidate(mKeyName);
+        mKeyStoreCache = null;
+        DigitusProviders.release(mProviders);
+        mProviders = null;
+        mKeyStore = null;
+        mKeyGenerator = null;
+        mCipher = null;
+        mKeyName = null;
+    }
+
+    public static boolean isReady() {
+        return mInstance != null && mInstance.mIsReady;
+    }
+
+    public static boolean isReady(String keyName) {
+        Digitus digitus = mRegistry.get(keyName);
+        return digitus != null && digitus.mIsReady;
+    }
+
+    protected static Digitus invalidate() {
+        return invalidate(mInstance);
+    }
+
+    protected static Digitus invalidate(String keyName) {
+        return invalidate(mRegistry.get(keyName));
+    }
+
+    private static Digitus invalidate(Digitus digitus) {
+        if (digitus == null)
+            throw new IllegalStateException("Digitus has not been initialized yet.");
+        else if (!digitus.mIsReady)
+            throw new IllegalStateException("Digitus is not yet ready.");
+        return digitus;
+    }
+
+    protected boolean mIsReady;
+    protected String mKeyName;
+    protected DigitusCallback mCallback;
+    protected Context mAppContext;
+    protected KeyguardManager mKeyguardManager;
+    protected FingerprintManager mFingerprintManager;
+    protected DigitusProviders mProviders;
+    protected KeyStore mKeyStore;
+    protected KeyStoreCache mKeyStoreCache;
+    protected KeyGenerator mKeyGenerator;
+    protected Cipher mCipher;
+    protected KeyLifecycle mKeyLifecycle;
+    protected boolean mKeyInvalidated;
+    protected EnvelopeKey mEnvelope;
+    protected DigitusKeySpec mKeySpec = DigitusKeySpec.DEFAULT;
+    protected int mValiditySeconds;
+    protected boolean mCipherUsable;
+
+    /**
+     * Initialize the {@link Cipher} instance with the key maintained by the {@link KeyLifecycle}.
+     * In envelope mode, the Cipher decrypts the stored data key once one has been wrapped. If the key
+     * is time-bound and the user hasn't authenticated recently, the Cipher can't be initialized yet,
+     * which is reflected by {@code mCipherUsable}.
+     *
+     * @return {@code true} if initialization is successful, {@code false} if the lock screen has
+     * been disabled or reset after the key was generated, or if a fingerprint got enrolled after
+     * the key was generated.
+     */
+    protected boolean initCipher() {
+        try {
+            SecretKey key = mKeyStoreCache.getKey(mKeyName);
+            if (mEnvelope.isEnabled() && mEnvelope.isProvisioned())
+                mCipher.init(Cipher.DECRYPT_MODE, key, mKeySpec.getDecryptParameters(mEnvelope.getIv()));
+            else
+                mCipher.init(Cipher.ENCRYPT_MODE, key);
+            mCipherUsable = true;
+            return true;
+        } catch (UserNotAuthenticatedException e) {
+            mCipherUsable = false;
+            return true;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            mCipherUsable = false;
+            onKeyInvalidated();
+            return false;
+        } catch (KeyStoreException | CertificateException | UnrecoverableKeyException | IOException
+                | NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException("Failed to init Cipher", e);
+        }
+    }
+
+    /**
+     * Flags the key as permanently invalidated, and evicts the session key it unlocked along with the
+     * values decrypted with it, so a new fingerprint can't use them until the key is replaced.
+     */
+    void onKeyInvalidated() {
+        mKeyStoreCache.invalidate(mKeyName);
+        mKeyInvalidated = true;
+        SessionKeyCache.get().evict(mKeyName);
+    }
+
+    /**
+     * Creates a new symmetric key in the Android Key Store which can only be used after the user has
+     * authenticated with fingerprint, replacing the existing one.
+     */
+    public static void recreateKey() {
+        invalidate().recreateKeyInternal();
+    }
+
+    /**
+     * Same as {@link #recreateKey()}, for the Digitus initialized with the given key name.
+     */
+    public static void recreateKey(String keyName) {
+        invalidate(keyName).recreateKeyInternal();
+    }
+
+    void recreateKeyInternal() {
+        mKeyLifecycle.generate(mKeyInvalidated ?
+                KeyLifecycle.Reason.INVALIDATED : KeyLifecycle.Reason.REQUESTED);
+        mKeyInvalidated = false;
+    }
+
+    /**
+     * @return The lifecycle of the current fingerprint key, which records when and why it was generated.
+     */
+    public static KeyLifecycle getKeyLifecycle() {
+        return invalidate().mKeyLifecycle;
+    }
+
+    /**
+     * @return The cache of the loaded keystore and its keys, which counts how many reloads were avoided.
+     */
+    public static KeyStoreCache getKeyStoreCache() {
+        return invalidate().mKeyStoreCache;
+    }
+
+    /**
+     * @return The spec the current fingerprint key was initialized with.
+     */
+    public static DigitusKeySpec getKeySpec() {
+        return invalidate().mKeySpec;
+    }
+}
@@ -0,0 +1,22 @@
+package com.afollestad.digitus;
+
+import android.hardware.fingerprint.FingerprintManager;
+import android.support.annotation.Nullable;
+
+/**
+ * Optionally implemented by a {@link DigitusCallback} to receive the CryptoObject the fingerprint
+ * sensor authorized along with the success event, e.g. to start decrypting right away on the
+ * callback executor (see {@link Digitus#setCallbackExecutor(java.util.concurrent.Executor)}). It's
+ * called instead of {@link DigitusCallback#onDigitusAuthenticated()}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface DigitusCryptoCallback extends DigitusCallback {
+
+    /**
+     * @param cryptoObject The authorized crypto object, or null if the user entered their password
+     *                     (or below Marshmallow, where there's no sensor). Its cipher is re-initialized
+     *                     by the next authentication, so be done with it by then.
+     */
+    void onDigitusAuthenticated(@Nullable FingerprintManager.CryptoObject cryptoObject);
+}
@@ -0,0 +1,175 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.security.keystore.KeyProperties;
+
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Describes the fingerprint key of a key name and the cipher that uses it, see
+ * {@link Digitus#init(android.app.Activity, String, int, DigitusKeySpec)}. The default is the
+ * AES/CBC/PKCS7Padding key Digitus has always used; AES-GCM encrypts and authenticates in a single
+ * pass, so no separate MAC over the data is needed.
+ * <p/>
+ * Preferences the device can't honor, like StrongBox below Android P, fall back to the closest thing
+ * it supports rather than failing.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class DigitusKeySpec {
+
+    public static final String BLOCK_MODE_CBC = "CBC";
+    public static final String BLOCK_MODE_GCM = "GCM";
+    public static final String PADDING_PKCS7 = "PKCS7Padding";
+    public static final String PADDING_NONE = "NoPadding";
+
+    /**
+     * The tag length used with GCM, the longest (and Keystore's default).
+     */
+    static final int GCM_TAG_BITS = 128;
+
+    public static final DigitusKeySpec DEFAULT = new Builder().build();
+
+    private final String mBlockMode;
+    private final String mPadding;
+    private final int mKeySize;
+    private final int mValiditySeconds;
+    private final boolean mPreferStrongBox;
+
+    private DigitusKeySpec(Builder builder) {
+        mBlockMode = builder.mBlockMode;
+        mPadding = builder.mPadding;
+        mKeySize = builder.mKeySize;
+        mValiditySeconds = builder.mValiditySeconds;
+        mPreferStrongBox = builder.mPreferStrongBox;
+    }
+
+    public static class Builder {
+
+        private String mBlockMode = BLOCK_MODE_CBC;
+        private String mPadding = PADDING_PKCS7;
+        private int mKeySize;
+        private int mValiditySeconds;
+        private boolean mPreferStrongBox;
+
+        /**
+         * Switches to AES-GCM, authenticated encryption without padding.
+         */
+        public Builder gcm() {
+            mBlockMode = BLOCK_MODE_GCM;
+            mPadding = PADDING_NONE;
+            return this;
+        }
+
+        /**
+         * Switches to AES-CBC with the given padding, {@link #PADDING_PKCS7} or {@link #PADDING_NONE}.
+         */
+        public Builder cbc(String padding) {
+            if (!PADDING_PKCS7.equals(padding) && !PADDING_NONE.equals(padding))
+                throw new IllegalArgumentException("Unsupported padding: " + padding);
+            mBlockMode = BLOCK_MODE_CBC;
+            mPadding = padding;
+            return this;
+        }
+
+        /**
+         * @param keySize 128, 192 or 256 bits, or 0 for the Keystore's default.
+         */
+        public Builder keySize(int keySize) {
+            if (keySize != 0 && keySize != 128 && keySize != 192 && keySize != 256)
+                throw new IllegalArgumentException("AES keys are 128, 192 or 256 bits.");
+            mKeySize = keySize;
+            return this;
+        }
+
+        /**
+         * See {@link Digitus#init(android.app.Activity, String, int, int)}.
+         */
+        public Builder validityDurationSeconds(int validityDurationSeconds) {
+            if (validityDurationSeconds < 0)
+                throw new IllegalArgumentException("The validity duration can't be negative.");
+            mValiditySeconds = validityDurationSeconds;
+            return this;
+        }
+
+        /**
+         * Keeps the key in a StrongBox secure element where the device has one (Android P and up),
+         * and in the regular Keystore otherwise.
+         */
+        public Builder preferStrongBox(boolean preferStrongBox) {
+            mPreferStrongBox = preferStrongBox;
+            return this;
+        }
+
+        public DigitusKeySpec build() {
+            return new DigitusKeySpec(this);
+        }
+    }
+
+    public String getBlockMode() {
+        return mBlockMode;
+    }
+
+    public String getPadding() {
+        return mPadding;
+    }
+
+    /**
+     * @return The key size in bits, or 0 for the Keystore's default.
+     */
+    public int getKeySize() {
+        return mKeySize;
+    }
+
+    public int getValiditySeconds() {
+        return mValiditySeconds;
+    }
+
+    public boolean isStrongBoxPreferred() {
+        return mPreferStrongBox;
+    }
+
+    public boolean isAuthenticatedEncryption() {
+        return BLOCK_MODE_GCM.equals(mBlockMode);
+    }
+
+    public String getTransformation() {
+        return KeyProperties.KEY_ALGORITHM_AES + "/" + mBlockMode + "/" + mPadding;
+    }
+
+    /**
+     * @return The parameters to decrypt data that was encrypted with the given IV.
+     */
+    public AlgorithmParameterSpec getDecryptParameters(byte[] iv) {
+        if (isAuthenticatedEncryption())
+            return new GCMParameterSpec(GCM_TAG_BITS, iv);
+        return new IvParameterSpec(iv);
+    }
+
+    /**
+     * @return True if the existing key has to be replaced to move from this spec to the other.
+     */
+    boolean keyDiffers(DigitusKeySpec other) {
+        return !mBlockMode.equals(other.mBlockMode) || !mPadding.equals(other.mPadding)
+                || mKeySize != other.mKeySize || mValiditySeconds != other.mValiditySeconds;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DigitusKeySpec)) return false;
+        final DigitusKeySpec other = (DigitusKeySpec) o;
+        return !keyDiffers(other) && mPreferStrongBox == other.mPreferStrongBox;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[]{mBlockMode, mPadding, mKeySize, mValiditySeconds, mPreferStrongBox});
+    }
+}
@@ -0,0 +1,65 @@
+package com.afollestad.digitus;
+
+/**
+ * Receives timings and outcomes of Digitus authentications, e.g. to feed them into telemetry. Set
+ * one with {@link Digitus#setMetrics(DigitusMetrics)}; {@link HistogramMetrics} records them in
+ * memory. Methods are called on the main thread, in the middle of authentication, so they should
+ * return quickly.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface DigitusMetrics {
+
+    enum Phase {
+        /**
+         * From {@link Digitus#init(android.app.Activity, String, int)} to
+         * {@link DigitusCallback#onDigitusReady()}, including the permission request if there was one.
+         * When Digitus only becomes ready as an Activity attaches, e.g. back from enrolling a
+         * fingerprint in the settings, it's timed from the attach instead.
+         */
+        INIT_TO_READY,
+        /**
+         * From {@link Digitus#beginAuthentication()} to the fingerprint sensor listening.
+         */
+        BEGIN_TO_ARMED,
+        /**
+         * From the fingerprint sensor listening to it recognizing a fingerprint.
+         */
+        ARMED_TO_AUTHENTICATED
+    }
+
+    enum Outcome {
+        SUCCEEDED,
+        FAILED,
+        HELP,
+        ERROR,
+        /**
+         * The sensor was temporarily locked out after too many failed attempts.
+         */
+        LOCKOUT
+    }
+
+    /**
+     * @param keyName The key name the phase belongs to.
+     * @param nanos   How long the phase took, in nanoseconds.
+     */
+    void onPhase(String keyName, Phase phase, long nanos);
+
+    /**
+     * Called for every event of the fingerprint sensor.
+     */
+    void onOutcome(String keyName, Outcome outcome);
+
+    /**
+     * The default, which records nothing.
+     */
+    DigitusMetrics NO_OP = new DigitusMetrics() {
+        @Override
+        public void onPhase(String keyName, Phase phase, long nanos) {
+        }
+
+        @Override
+        public void onOutcome(String keyName, Outcome outcome) {
+        }
+    };
+}
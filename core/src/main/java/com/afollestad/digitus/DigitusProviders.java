@@ -0,0 +1,151 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.Nullable;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Resolves the AndroidKeyStore, KeyGenerator and Cipher instances used by Digitus. Calling
+ * {@link #warmUp()} from your Application's onCreate() moves the provider lookups and class loading
+ * off of the main thread, so {@link Digitus#init} only has to attach to objects that already exist.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class DigitusProviders {
+
+    static final String KEY_STORE = "AndroidKeyStore";
+    static final String TRANSFORMATION = KeyProperties.KEY_ALGORITHM_AES + "/"
+            + KeyProperties.BLOCK_MODE_CBC + "/"
+            + KeyProperties.ENCRYPTION_PADDING_PKCS7;
+
+    private static FutureTask<DigitusProviders> sWarmUp;
+    private static boolean sLeased;
+
+    final KeyStore mKeyStore;
+    final KeyStoreCache mKeyStoreCache;
+    final KeyGenerator mKeyGenerator;
+    final Cipher mCipher;
+
+    private DigitusProviders() {
+        try {
+            mKeyStore = KeyStore.getInstance(KEY_STORE);
+        } catch (KeyStoreException e) {
+            throw new RuntimeException("Failed to get an instance of KeyStore", e);
+        }
+        mKeyStoreCache = new KeyStoreCache(mKeyStore);
+        try {
+            mKeyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEY_STORE);
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            throw new RuntimeException("Failed to get an instance of KeyGenerator", e);
+        }
+        try {
+            mCipher = Cipher.getInstance(TRANSFORMATION);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException("Failed to get an instance of Cipher", e);
+        }
+    }
+
+    /**
+     * Starts resolving the providers on a new background thread.
+     *
+     * @see #warmUp(Executor)
+     */
+    public static Future<DigitusProviders> warmUp() {
+        return warmUp(null);
+    }
+
+    /**
+     * Starts resolving the providers on the given executor, or on a new background thread if the
+     * executor is null. Subsequent calls return the same future. Below Marshmallow there is nothing
+     * to resolve, and the returned future is already done with a null result.
+     */
+    public static synchronized Future<DigitusProviders> warmUp(@Nullable Executor executor) {
+        if (sWarmUp != null)
+            return sWarmUp;
+        sWarmUp = new FutureTask<>(new Callable<DigitusProviders>() {
+            @Override
+            public DigitusProviders call() throws Exception {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+                    return null;
+                return new DigitusProviders();
+            }
+        });
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            sWarmUp.run();
+        else if (executor != null)
+            executor.execute(sWarmUp);
+        else
+            new Thread(sWarmUp, "Digitus-WarmUp").start();
+        return sWarmUp;
+    }
+
+    /**
+     * @return True if {@link #warmUp()} was called and the providers have been resolved.
+     */
+    public static synchronized boolean isReady() {
+        return sWarmUp != null && sWarmUp.isDone();
+    }
+
+    /**
+     * Hands out the warmed-up providers, waiting for the warm-up to finish if it's still running.
+     * If the warmed-up set is already in use (or warmUp() was never called), a new set is resolved
+     * on the calling thread instead.
+     */
+    static DigitusProviders acquire() {
+        final FutureTask<DigitusProviders> warmUp;
+        synchronized (DigitusProviders.class) {
+            warmUp = sLeased ? null : sWarmUp;
+            if (warmUp != null) sLeased = true;
+        }
+        if (warmUp != null) {
+            try {
+                return warmUp.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // A failed warm-up is never retried, later inits resolve their own providers
+                synchronized (DigitusProviders.class) {
+                    if (sWarmUp == warmUp)
+                        sWarmUp = null;
+                    sLeased = false;
+                }
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+            synchronized (DigitusProviders.class) {
+                sLeased = false;
+            }
+        }
+        return new DigitusProviders();
+    }
+
+    /**
+     * Returns a set handed out by {@link #acquire()}, so the next init can attach to it again.
+     */
+    static synchronized void release(@Nullable DigitusProviders providers) {
+        if (providers == null || sWarmUp == null || !sWarmUp.isDone())
+            return;
+        try {
+            if (sWarmUp.get() == providers)
+                sLeased = false;
+        } catch (InterruptedException | ExecutionException ignored) {
+        }
+    }
+}
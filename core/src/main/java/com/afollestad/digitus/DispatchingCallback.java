@@ -0,0 +1,101 @@
+package com.afollestad.digitus;
+
+import android.hardware.fingerprint.FingerprintManager;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers each event to a {@link DigitusCallback} on an executor rather than on the calling thread.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class DispatchingCallback implements DigitusCryptoCallback {
+
+    private final DigitusCallback mTarget;
+    private final Executor mExecutor;
+
+    DispatchingCallback(DigitusCallback target, Executor executor) {
+        mTarget = target;
+        mExecutor = executor;
+    }
+
+    @Override
+    public void onDigitusReady() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onDigitusReady();
+            }
+        });
+    }
+
+    @Override
+    public void onDigitusRegistrationNeeded() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onDigitusRegistrationNeeded();
+            }
+        });
+    }
+
+    @Override
+    public void onDigitusAuthenticated() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onDigitusAuthenticated();
+            }
+        });
+    }
+
+    @Override
+    public void onDigitusAuthenticated(@Nullable final FingerprintManager.CryptoObject cryptoObject) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                notifyAuthenticated(mTarget, cryptoObject);
+            }
+        });
+    }
+
+    @Override
+    public void onDigitusError(final Exception e) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onDigitusError(e);
+            }
+        });
+    }
+
+    @Override
+    public void onDigitusValidatePassword(final String password) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mTarget.onDigitusValidatePassword(password);
+            }
+        });
+    }
+
+    /**
+     * Runs the given work after the events already dispatched to the callback, i.e. on its executor
+     * if it has one, or right away otherwise.
+     */
+    static void run(DigitusCallback callback, Runnable runnable) {
+        if (callback instanceof DispatchingCallback)
+            ((DispatchingCallback) callback).mExecutor.execute(runnable);
+        else runnable.run();
+    }
+
+    /**
+     * Reports success to the callback, with the crypto object if it wants it.
+     */
+    static void notifyAuthenticated(DigitusCallback callback, @Nullable FingerprintManager.CryptoObject cryptoObject) {
+        if (callback instanceof DigitusCryptoCallback)
+            ((DigitusCryptoCallback) callback).onDigitusAuthenticated(cryptoObject);
+        else callback.onDigitusAuthenticated();
+    }
+}
@@ -0,0 +1,162 @@
+package com.afollestad.digitus;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Envelope mode for a Digitus key name: the fingerprint key only wraps and unwraps a software data
+ * key, which is held in the {@link SessionKeyCache} once unlocked. One authentication can then back
+ * any number of fast crypto operations until the session key is evicted.
+ * <p/>
+ * The data key in use isn't always the wrapped one: a key recovered from escrow or rotated to is
+ * adopted, and wrapped by the next unlock; when the fingerprint key is replaced, an unlocked data key
+ * is carried over the same way. Until then a marker is committed, so a data key that didn't survive
+ * process death is reported as lost, see {@link SessionKeyLostException}, rather than replaced.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class EnvelopeKey {
+
+    private static final String PREFS_NAME = "[digitus-envelope]";
+    private static final String DATA_KEY_ALGORITHM = "AES";
+    private static final int DATA_KEY_SIZE = 256;
+
+    private final Context mContext;
+    private final String mKeyName;
+    private SharedPreferences mPrefs;
+    private long mTtlMillis;
+    private volatile SecretKey mAdopted;
+
+    EnvelopeKey(Context context, String keyName) {
+        mContext = context.getApplicationContext();
+        mKeyName = keyName;
+    }
+
+    private SharedPreferences prefs() {
+        if (mPrefs == null)
+            mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return mPrefs;
+    }
+
+    boolean isEnabled() {
+        return mTtlMillis > 0;
+    }
+
+    void setTtl(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * @return True if the wrapped data key is the one in use, i.e. the fingerprint cipher has to decrypt.
+     */
+    boolean isProvisioned() {
+        return prefs().contains(mKeyName + ":key") && !prefs().contains(mKeyName + ":pending");
+    }
+
+    /**
+     * @return True if the data key in use isn't wrapped and isn't in memory either, so it has to be
+     * recovered from escrow, or discarded.
+     */
+    boolean isRecoveryNeeded() {
+        return mAdopted == null && prefs().contains(mKeyName + ":pending");
+    }
+
+    byte[] getIv() {
+        return Base64.decode(prefs().getString(mKeyName + ":iv", null), Base64.NO_WRAP);
+    }
+
+    /**
+     * Unwraps the stored data key with the authenticated cipher, or wraps the adopted one, or
+     * generates and wraps a new one if there never was one. The data key is put into the
+     * {@link SessionKeyCache} either way, but a new one only once its wrapped copy is on disk, since
+     * that's the only copy there is.
+     *
+     * @throws SessionKeyLostException If the data key in use has to be recovered first.
+     * @throws KeyStoreException       If the wrapped data key couldn't be stored.
+     */
+    SecretKey unlock(Cipher cipher) throws GeneralSecurityException {
+        final SecretKey key;
+        if (isProvisioned()) {
+            final byte[] wrapped = Base64.decode(prefs().getString(mKeyName + ":key", null), Base64.NO_WRAP);
+            final byte[] raw = cipher.doFinal(wrapped);
+            key = new SecretKeySpec(raw, DATA_KEY_ALGORITHM);
+            Arrays.fill(raw, (byte) 0);
+        } else {
+            if (isRecoveryNeeded())
+                throw new SessionKeyLostException(mKeyName);
+            key = mAdopted != null ? mAdopted : generateDataKey();
+            final byte[] wrapped = cipher.doFinal(key.getEncoded());
+            // Replaces the previous wrapped key and clears the marker in the same write
+            final boolean stored = prefs().edit()
+                    .putString(mKeyName + ":key", Base64.encodeToString(wrapped, Base64.NO_WRAP))
+                    .putString(mKeyName + ":iv", Base64.encodeToString(cipher.getIV(), Base64.NO_WRAP))
+                    .remove(mKeyName + ":pending")
+                    .commit();
+            if (!stored)
+                throw new KeyStoreException("Failed to store the wrapped data key of " + mKeyName);
+            mAdopted = null;
+        }
+        SessionKeyCache.get().putKey(mKeyName, key, mTtlMillis);
+        return key;
+    }
+
+    static SecretKey generateDataKey() throws GeneralSecurityException {
+        final KeyGenerator generator = KeyGenerator.getInstance(DATA_KEY_ALGORITHM);
+        generator.init(DATA_KEY_SIZE);
+        return generator.generateKey();
+    }
+
+    /**
+     * Makes the given data key the one in use, e.g. after it was recovered from escrow or rotated to.
+     * It must have been escrowed already, since the escrow holds its only lasting copy until the next
+     * unlock wraps it; the previous wrapped key is only replaced then.
+     *
+     * @throws KeyStoreException If the marker couldn't be stored.
+     */
+    void adopt(SecretKey key) throws KeyStoreException {
+        if (!prefs().edit().putBoolean(mKeyName + ":pending", true).commit())
+            throw new KeyStoreException("Failed to store the adoption of " + mKeyName);
+        mAdopted = key;
+        SessionKeyCache.get().putKey(mKeyName, key, mTtlMillis);
+    }
+
+    /**
+     * Called when the fingerprint key is replaced, since the wrapped data key can't be unwrapped by
+     * the new one. A data key that's still unlocked is adopted, so the next unlock wraps it again;
+     * otherwise it has to be recovered, see {@link #isRecoveryNeeded()}.
+     */
+    void retire() {
+        if (!prefs().contains(mKeyName + ":key") && !prefs().contains(mKeyName + ":pending"))
+            return;
+        final SecretKey unlocked = mAdopted != null ? mAdopted : SessionKeyCache.get().getKey(mKeyName);
+        prefs().edit()
+                .remove(mKeyName + ":key")
+                .remove(mKeyName + ":iv")
+                .putBoolean(mKeyName + ":pending", true)
+                .commit();
+        mAdopted = unlocked;
+    }
+
+    /**
+     * Gives up on a data key that has to be recovered, so the next unlock generates a new one.
+     */
+    void discard() {
+        mAdopted = null;
+        SessionKeyCache.get().evict(mKeyName);
+        prefs().edit()
+                .remove(mKeyName + ":key")
+                .remove(mKeyName + ":iv")
+                .remove(mKeyName + ":pending")
+                .commit();
+    }
+}
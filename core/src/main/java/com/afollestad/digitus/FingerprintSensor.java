@@ -0,0 +1,28 @@
+package com.afollestad.digitus;
+
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.CancellationSignal;
+import android.support.annotation.Nullable;
+
+/**
+ * The part of {@link FingerprintManager} the {@link AuthenticationEngine} talks to. Normally that's
+ * the system's sensor, see {@link SystemFingerprintSensor}; a {@link SimulatedFingerprintSensor}
+ * can stand in for it to replay scripted event timelines where there's no real sensor, e.g. in
+ * Robolectric tests. Set one with {@link Digitus#setFingerprintSensor(FingerprintSensor)}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface FingerprintSensor {
+
+    boolean isHardwareDetected();
+
+    boolean hasEnrolledFingerprints();
+
+    /**
+     * Starts listening for a finger, following the contract of
+     * {@link FingerprintManager#authenticate}: events go to the callback until it receives an error
+     * or a success, or until the signal is cancelled.
+     */
+    void authenticate(@Nullable FingerprintManager.CryptoObject crypto, CancellationSignal cancel,
+                      FingerprintManager.AuthenticationCallback callback);
+}
@@ -0,0 +1,115 @@
+package com.afollestad.digitus;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link DigitusMetrics} which keeps a histogram per phase and counters per outcome, for each key
+ * name. Histogram buckets are powers of two of nanoseconds, so recording is a couple of atomic
+ * increments without any allocation, and percentiles are accurate to within a factor of two.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class HistogramMetrics implements DigitusMetrics {
+
+    private static final int BUCKETS = 64;
+
+    private static class KeyMetrics {
+        final AtomicLongArray buckets = new AtomicLongArray(Phase.values().length * BUCKETS);
+        final AtomicLongArray totals = new AtomicLongArray(Phase.values().length);
+        final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+    }
+
+    private final ConcurrentMap<String, KeyMetrics> mMetrics = new ConcurrentHashMap<>();
+
+    private KeyMetrics metrics(String keyName) {
+        KeyMetrics metrics = mMetrics.get(keyName);
+        if (metrics == null) {
+            final KeyMetrics created = new KeyMetrics();
+            metrics = mMetrics.putIfAbsent(keyName, created);
+            if (metrics == null)
+                metrics = created;
+        }
+        return metrics;
+    }
+
+    @Override
+    public void onPhase(String keyName, Phase phase, long nanos) {
+        final KeyMetrics metrics = metrics(keyName);
+        final int bucket = nanos <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+        metrics.buckets.incrementAndGet(phase.ordinal() * BUCKETS + Math.min(bucket, BUCKETS - 1));
+        metrics.totals.addAndGet(phase.ordinal(), nanos);
+    }
+
+    @Override
+    public void onOutcome(String keyName, Outcome outcome) {
+        metrics(keyName).outcomes.incrementAndGet(outcome.ordinal());
+    }
+
+    /**
+     * @return The key names anything has been recorded for.
+     */
+    public Set<String> getKeyNames() {
+        return mMetrics.keySet();
+    }
+
+    /**
+     * @return How many times the phase has been recorded for the key name.
+     */
+    public long getCount(String keyName, Phase phase) {
+        final KeyMetrics metrics = mMetrics.get(keyName);
+        if (metrics == null) return 0;
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += metrics.buckets.get(phase.ordinal() * BUCKETS + i);
+        return count;
+    }
+
+    /**
+     * @return The mean duration of the phase for the key name in nanoseconds, or 0 if it hasn't been
+     * recorded.
+     */
+    public long getMeanNanos(String keyName, Phase phase) {
+        final long count = getCount(keyName, phase);
+        if (count == 0) return 0;
+        return mMetrics.get(keyName).totals.get(phase.ordinal()) / count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100, e.g. 50 for the median or 99 for the slowest 1%.
+     * @return The upper bound in nanoseconds of the histogram bucket the percentile falls into, or 0
+     * if the phase hasn't been recorded.
+     */
+    public long getPercentileNanos(String keyName, Phase phase, double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("The percentile must be between 0 and 100.");
+        final long count = getCount(keyName, phase);
+        if (count == 0) return 0;
+        final AtomicLongArray buckets = mMetrics.get(keyName).buckets;
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(phase.ordinal() * BUCKETS + i);
+            if (seen >= rank)
+                return i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return How many times the outcome has been recorded for the key name.
+     */
+    public long getOutcomeCount(String keyName, Outcome outcome) {
+        final KeyMetrics metrics = mMetrics.get(keyName);
+        return metrics == null ? 0 : metrics.outcomes.get(outcome.ordinal());
+    }
+
+    /**
+     * Forgets everything recorded so far, e.g. after reporting it.
+     */
+    public void reset() {
+        mMetrics.clear();
+    }
+}
@@ -0,0 +1,58 @@
+package com.afollestad.digitus;
+
+import java.security.MessageDigest;
+
+/**
+ * Proves that one challenge is part of a signed batch: the sibling hashes from its leaf up to the
+ * root of the batch's {@link MerkleTree}. A proof is a few hundred bytes even for large batches, so
+ * it can be sent along with each item.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class InclusionProof {
+
+    private final int mIndex;
+    private final byte[][] mSiblings;
+    private final boolean[] mSiblingOnLeft;
+
+    public InclusionProof(int index, byte[][] siblings, boolean[] siblingOnLeft) {
+        if (siblings.length != siblingOnLeft.length)
+            throw new IllegalArgumentException("Every sibling needs a side.");
+        mIndex = index;
+        mSiblings = siblings;
+        mSiblingOnLeft = siblingOnLeft;
+    }
+
+    /**
+     * @return The index of the challenge within its batch.
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public int getDepth() {
+        return mSiblings.length;
+    }
+
+    public byte[] getSibling(int level) {
+        return mSiblings[level].clone();
+    }
+
+    public boolean isSiblingOnLeft(int level) {
+        return mSiblingOnLeft[level];
+    }
+
+    /**
+     * @return The root this proof leads to from the given challenge.
+     */
+    public byte[] computeRoot(byte[] challenge) {
+        final MessageDigest digest = MerkleTree.newDigest();
+        byte[] hash = MerkleTree.hashLeaf(digest, challenge);
+        for (int i = 0; i < mSiblings.length; i++) {
+            hash = mSiblingOnLeft[i]
+                    ? MerkleTree.hashNode(digest, mSiblings[i], hash)
+                    : MerkleTree.hashNode(digest, hash, mSiblings[i]);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,151 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps a copy of envelope data keys wrapped with a key derived from the user's password, in private
+ * preferences. Fingerprint keys become unusable once a new fingerprint is enrolled, which takes the
+ * data keys they wrap with them; the escrowed copy can still be recovered with the password the user
+ * enters at that point. Keys are wrapped with AES-GCM, bound to the key name and slot they're stored
+ * under. Deriving the wrapping key is slow on purpose, so don't use this from the main thread.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public final class KeyEscrow {
+
+    static final String PREFS_NAME = "[digitus-escrow]";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final String DATA_KEY_ALGORITHM = "AES";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int KEY_BITS = 256;
+    private static final int ITERATIONS = 20000;
+
+    /**
+     * The slot of the key currently in use.
+     */
+    static final String CURRENT = "current";
+    /**
+     * The slot of the key a rotation is moving to, until the rotation completes.
+     */
+    static final String NEXT = "next";
+
+    private final SharedPreferences mPrefs;
+
+    public KeyEscrow(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public boolean hasKey(String keyName) {
+        return hasKey(keyName, CURRENT);
+    }
+
+    boolean hasKey(String keyName, String slot) {
+        return mPrefs.contains(prefKey(keyName, slot));
+    }
+
+    /**
+     * Escrows the data key of the given key name, replacing whatever was escrowed before.
+     */
+    public void escrow(String keyName, SecretKey dataKey, char[] password) throws GeneralSecurityException {
+        escrow(keyName, CURRENT, dataKey, password);
+    }
+
+    void escrow(String keyName, String slot, SecretKey dataKey, char[] password) throws GeneralSecurityException {
+        final SecureRandom random = new SecureRandom();
+        final byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        final byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, derive(password, salt), new GCMParameterSpec(GCM_TAG_BITS, iv));
+        // A record moved to another key name or slot doesn't open
+        cipher.updateAAD(prefKey(keyName, slot).getBytes(UTF_8));
+        final byte[] wrapped = cipher.doFinal(dataKey.getEncoded());
+        final byte[] record = new byte[SALT_LENGTH + IV_LENGTH + wrapped.length];
+        System.arraycopy(salt, 0, record, 0, SALT_LENGTH);
+        System.arraycopy(iv, 0, record, SALT_LENGTH, IV_LENGTH);
+        System.arraycopy(wrapped, 0, record, SALT_LENGTH + IV_LENGTH, wrapped.length);
+        // Committed right away, a rotation relies on the key being there after process death.
+        mPrefs.edit().putString(prefKey(keyName, slot), Base64.encodeToString(record, Base64.NO_WRAP)).commit();
+    }
+
+    /**
+     * @return The escrowed data key, or null if there is none.
+     * @throws GeneralSecurityException If the password is wrong, or the escrowed key has been tampered with.
+     */
+    @Nullable
+    public SecretKey recover(String keyName, char[] password) throws GeneralSecurityException {
+        return recover(keyName, CURRENT, password);
+    }
+
+    @Nullable
+    SecretKey recover(String keyName, String slot, char[] password) throws GeneralSecurityException {
+        final String stored = mPrefs.getString(prefKey(keyName, slot), null);
+        if (stored == null)
+            return null;
+        final byte[] record = Base64.decode(stored, Base64.NO_WRAP);
+        if (record.length < SALT_LENGTH + IV_LENGTH + GCM_TAG_BITS / 8)
+            throw new GeneralSecurityException("The escrowed key of " + keyName + " is truncated.");
+        final byte[] salt = Arrays.copyOfRange(record, 0, SALT_LENGTH);
+        final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, derive(password, salt),
+                new GCMParameterSpec(GCM_TAG_BITS, record, SALT_LENGTH, IV_LENGTH));
+        cipher.updateAAD(prefKey(keyName, slot).getBytes(UTF_8));
+        final byte[] raw = cipher.doFinal(record, SALT_LENGTH + IV_LENGTH, record.length - SALT_LENGTH - IV_LENGTH);
+        final SecretKey key = new SecretKeySpec(raw, DATA_KEY_ALGORITHM);
+        Arrays.fill(raw, (byte) 0);
+        return key;
+    }
+
+    void remove(String keyName, String slot) {
+        mPrefs.edit().remove(prefKey(keyName, slot)).commit();
+    }
+
+    /**
+     * Forgets everything escrowed for the key name.
+     */
+    public void clear(String keyName) {
+        mPrefs.edit()
+                .remove(prefKey(keyName, CURRENT))
+                .remove(prefKey(keyName, NEXT))
+                .commit();
+    }
+
+    private static String prefKey(String keyName, String slot) {
+        return keyName + ":" + slot;
+    }
+
+    private static SecretKey derive(char[] password, byte[] salt) throws GeneralSecurityException {
+        final PBEKeySpec spec = new PBEKeySpec(password, salt, ITERATIONS, KEY_BITS);
+        try {
+            final byte[] raw = SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+            final SecretKey key = new SecretKeySpec(raw, DATA_KEY_ALGORITHM);
+            Arrays.fill(raw, (byte) 0);
+            return key;
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.KeyProperties;
+import android.security.keystore.UserNotAuthenticatedException;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.ProviderException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+
+/**
+ * Keeps track of the fingerprint key stored under a Digitus key name. The key is only generated
+ * when it's missing or has been permanently invalidated (or when a new one is explicitly requested),
+ * so a routine init is a cheap lookup instead of a key generation.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class KeyLifecycle {
+
+    /**
+     * Why the key was last generated.
+     */
+    public enum Reason {
+        /**
+         * No key existed under the key name yet.
+         */
+        MISSING,
+        /**
+         * The key was permanently invalidated, e.g. because a new fingerprint was enrolled or the
+         * lock screen was disabled.
+         */
+        INVALIDATED,
+        /**
+         * A new key was explicitly requested via {@link Digitus#recreateKey()}.
+         */
+        REQUESTED,
+        /**
+         * The existing key was generated with different settings, e.g. another validity duration or
+         * block mode.
+         */
+        SPEC_CHANGED
+    }
+
+    /**
+     * Android P, the first version with StrongBox.
+     */
+    private static final int STRONG_BOX_SDK = 28;
+
+    private final DigitusBase mDigitus;
+    private Reason mLastReason;
+    private long mLastGenerated;
+    private int mGenerationCount;
+    private boolean mSpecVerified;
+    private boolean mStrongBoxBacked;
+
+    KeyLifecycle(DigitusBase digitus) {
+        mDigitus = digitus;
+    }
+
+    /**
+     * Makes sure a usable key exists, generating one only if it's missing or was generated with other
+     * settings. An invalidated key is only flagged: the prompt then takes the user through
+     * {@link Stage#NEW_FINGERPRINT_ENROLLED}, and the key is replaced once they've entered their
+     * password, see {@link Digitus#recreateKey()}.
+     *
+     * @return True if a new key had to be generated.
+     */
+    boolean ensureKey() {
+        try {
+            final KeyStoreCache cache = mDigitus.mKeyStoreCache;
+            if (!cache.containsAlias(mDigitus.mKeyName)) {
+                generate(Reason.MISSING);
+                return true;
+            }
+            SecretKey key = cache.getKey(mDigitus.mKeyName);
+            if (key == null) {
+                generate(Reason.MISSING);
+                return true;
+            }
+            if (!mSpecVerified) {
+                if (!matchesSpec(key)) {
+                    generate(Reason.SPEC_CHANGED);
+                    return true;
+                }
+                mSpecVerified = true;
+            }
+            // Initializing the Cipher is the only way to find out whether the key has been invalidated.
+            mDigitus.mCipher.init(Cipher.ENCRYPT_MODE, key);
+            return false;
+        } catch (UserNotAuthenticatedException e) {
+            // A time-bound key which is valid, just locked until the user authenticates again
+            return false;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            // A new fingerprint must not be able to use the key until the user has confirmed it
+            mDigitus.onKeyInvalidated();
+            return false;
+        } catch (KeyStoreException | CertificateException | UnrecoverableKeyException | IOException
+                | NoSuchAlgorithmException | InvalidKeyException | NoSuchProviderException
+                | InvalidKeySpecException e) {
+            throw new RuntimeException("Failed to check the fingerprint key", e);
+        }
+    }
+
+    /**
+     * @return True if the existing key was generated with the settings currently in use.
+     */
+    private boolean matchesSpec(SecretKey key) throws NoSuchAlgorithmException,
+            NoSuchProviderException, InvalidKeySpecException {
+        final SecretKeyFactory factory = SecretKeyFactory.getInstance(key.getAlgorithm(), DigitusProviders.KEY_STORE);
+        final KeyInfo info = (KeyInfo) factory.getKeySpec(key, KeyInfo.class);
+        // Keys which require authentication for every use report a validity duration of -1
+        final int validity = mDigitus.mValiditySeconds > 0 ? mDigitus.mValiditySeconds : -1;
+        if (info.getUserAuthenticationValidityDurationSeconds() != validity)
+            return false;
+        final DigitusKeySpec spec = mDigitus.mKeySpec;
+        if (spec.getKeySize() > 0 && info.getKeySize() != spec.getKeySize())
+            return false;
+        return Arrays.asList(info.getBlockModes()).contains(spec.getBlockMode())
+                && Arrays.asList(info.getEncryptionPaddings()).contains(spec.getPadding());
+    }
+
+    /**
+     * Creates a symmetric key in the Android Key Store which can only be used after the user has
+     * authenticated with fingerprint, replacing any key that already exists under the key name.
+     */
+    void generate(Reason reason) {
+        // The enrolling flow for fingerprint. This is where you ask the user to set up fingerprint
+        // for your flow. Use of keys is necessary if you need to know if the set of
+        // enrolled fingerprints has changed.
+        mDigitus.mKeyStoreCache.invalidate(mDigitus.mKeyName);
+        // A data key wrapped by the old key can't be unwrapped anymore, it's kept or has to be recovered
+        mDigitus.mEnvelope.retire();
+        try {
+            mDigitus.mKeyStoreCache.keyStore();
+            final DigitusKeySpec spec = mDigitus.mKeySpec;
+            // Set the alias of the entry in Android KeyStore where the key will appear
+            // and the constrains (purposes) in the constructor of the Builder
+            final KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(mDigitus.mKeyName,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(spec.getBlockMode())
+                            // Require the user to authenticate with a fingerprint to authorize every use
+                            // of the key, or every use within the validity duration
+                    .setUserAuthenticationRequired(true)
+                    .setUserAuthenticationValidityDurationSeconds(
+                            mDigitus.mValiditySeconds > 0 ? mDigitus.mValiditySeconds : -1)
+                    .setEncryptionPaddings(spec.getPadding());
+            if (spec.getKeySize() > 0)
+                builder.setKeySize(spec.getKeySize());
+            mStrongBoxBacked = spec.isStrongBoxPreferred() && setStrongBoxBacked(builder, true);
+            SecretKey key;
+            try {
+                mDigitus.mKeyGenerator.init(builder.build());
+                key = mDigitus.mKeyGenerator.generateKey();
+            } catch (ProviderException e) {
+                if (!mStrongBoxBacked || !e.getClass().getName().endsWith("StrongBoxUnavailableException"))
+                    throw e;
+                // The device has no StrongBox after all, fall back to the regular Keystore
+                setStrongBoxBacked(builder, false);
+                mStrongBoxBacked = false;
+                mDigitus.mKeyGenerator.init(builder.build());
+                key = mDigitus.mKeyGenerator.generateKey();
+            }
+            mDigitus.mKeyStoreCache.putKey(mDigitus.mKeyName, key);
+        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException | CertificateException | IOException e) {
+            throw new RuntimeException(e);
+        }
+        mSpecVerified = true;
+        mLastReason = reason;
+        mLastGenerated = System.currentTimeMillis();
+        mGenerationCount++;
+    }
+
+    /**
+     * StrongBox only exists from Android P on, so it's requested reflectively.
+     *
+     * @return False if the platform doesn't know about StrongBox.
+     */
+    private static boolean setStrongBoxBacked(KeyGenParameterSpec.Builder builder, boolean strongBox) {
+        if (Build.VERSION.SDK_INT < STRONG_BOX_SDK)
+            return false;
+        try {
+            KeyGenParameterSpec.Builder.class.getMethod("setIsStrongBoxBacked", boolean.class)
+                    .invoke(builder, strongBox);
+            return true;
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return True if the key this instance last generated lives in a StrongBox secure element. Keys
+     * which were reused rather than generated report false, since the Keystore can't tell on every
+     * platform version.
+     */
+    public boolean isStrongBoxBacked() {
+        return mStrongBoxBacked;
+    }
+
+    /**
+     * @return True if the key has been permanently invalidated, e.g. by a new fingerprint, and is
+     * waiting to be replaced after the user enters their password.
+     */
+    public boolean isInvalidated() {
+        return mDigitus.mKeyInvalidated;
+    }
+
+    /**
+     * @return Why the key was last generated by this instance, or null if the existing key was reused.
+     */
+    @Nullable
+    public Reason getLastReason() {
+        return mLastReason;
+    }
+
+    /**
+     * @return The wall clock time at which the key was last generated, or 0 if it never was.
+     */
+    public long getLastGenerated() {
+        return mLastGenerated;
+    }
+
+    /**
+     * @return How many times this instance has generated the key.
+     */
+    public int getGenerationCount() {
+        return mGenerationCount;
+    }
+}
@@ -0,0 +1,342 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Re-encrypts every record of a {@link PayloadStore} from one data key to another. Records are split
+ * into chunks which are processed on a fork-join pool of bounded parallelism, and every finished chunk
+ * is appended to a checkpoint file, once its records are written; a {@link BatchPayloadStore} gets
+ * each chunk in a single write. A rotation which is interrupted, e.g. by process death, picks up
+ * where it left off when it's run again with the same keys and checkpoint file; records are tagged
+ * with their key as well, so none is ever re-encrypted twice. Records are sealed with AES-GCM, which
+ * authenticates the version and key tag along with the payload, so a tampered record fails to open
+ * rather than decrypting to garbage.
+ * <p/>
+ * {@link #run()} blocks until the rotation is done, so call it from a background thread.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class KeyRotation {
+
+    public interface Listener {
+
+        /**
+         * Called from the pool's threads as records are rotated.
+         */
+        void onProgress(int rotated, int total);
+    }
+
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final byte VERSION = 2;
+    private static final int TAG_LENGTH = 8;
+    private static final int IV_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int AAD_LENGTH = 1 + TAG_LENGTH;
+    private static final int HEADER_LENGTH = AAD_LENGTH + IV_LENGTH;
+    private static final int CHUNK_SIZE = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final SecretKey mFrom;
+    private final SecretKey mTo;
+    private final PayloadStore mStore;
+    private final File mCheckpoint;
+    private final int mParallelism;
+    private Listener mListener;
+
+    /**
+     * @param checkpoint  Where progress is recorded, e.g. in {@link android.content.Context#getNoBackupFilesDir()}.
+     *                    It's deleted once the rotation is complete.
+     * @param parallelism How many records are re-encrypted at the same time, at most.
+     */
+    public KeyRotation(SecretKey from, SecretKey to, PayloadStore store, File checkpoint, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        mFrom = from;
+        mTo = to;
+        mStore = store;
+        mCheckpoint = checkpoint;
+        mParallelism = parallelism;
+    }
+
+    public KeyRotation setListener(@Nullable Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Rotates every record which isn't under the new key yet.
+     *
+     * @return How many records were re-encrypted by this run.
+     */
+    public int run() throws IOException, GeneralSecurityException {
+        final List<String> ids = new ArrayList<>(mStore.getIds());
+        // The chunks in the checkpoint refer to positions in this order
+        Collections.sort(ids);
+        final int chunks = (ids.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final byte[] fromTag = tag(mFrom);
+        final byte[] toTag = tag(mTo);
+        final long fingerprint = fingerprint(ids, fromTag, toTag);
+        final BitSet done = readCheckpoint(fingerprint, chunks);
+
+        final DataOutputStream checkpoint = openCheckpoint(fingerprint, !done.isEmpty());
+        final AtomicInteger rotated = new AtomicInteger();
+        final AtomicInteger processed = new AtomicInteger(done.cardinality() * CHUNK_SIZE);
+        final ForkJoinPool pool = new ForkJoinPool(mParallelism);
+        try {
+            pool.invoke(new ChunkTask(ids, 0, chunks, done, fromTag, toTag, checkpoint, rotated, processed));
+        } catch (RotationException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            throw e;
+        } finally {
+            // A failed chunk leaves its forked siblings queued, none of them may write once this returns
+            pool.shutdownNow();
+            awaitTermination(pool);
+            checkpoint.close();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mCheckpoint.delete();
+        return rotated.get();
+    }
+
+    private static void awaitTermination(ForkJoinPool pool) {
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class ChunkTask extends RecursiveAction {
+
+        private final List<String> mIds;
+        private final int mFromChunk;
+        private final int mToChunk;
+        private final BitSet mDone;
+        private final byte[] mFromTag;
+        private final byte[] mToTag;
+        private final DataOutputStream mCheckpointOut;
+        private final AtomicInteger mRotated;
+        private final AtomicInteger mProcessed;
+
+        ChunkTask(List<String> ids, int fromChunk, int toChunk, BitSet done, byte[] fromTag, byte[] toTag,
+                  DataOutputStream checkpoint, AtomicInteger rotated, AtomicInteger processed) {
+            mIds = ids;
+            mFromChunk = fromChunk;
+            mToChunk = toChunk;
+            mDone = done;
+            mFromTag = fromTag;
+            mToTag = toTag;
+            mCheckpointOut = checkpoint;
+            mRotated = rotated;
+            mProcessed = processed;
+        }
+
+        @Override
+        protected void compute() {
+            if (mToChunk - mFromChunk > 1) {
+                final int middle = (mFromChunk + mToChunk) >>> 1;
+                invokeAll(new ChunkTask(mIds, mFromChunk, middle, mDone, mFromTag, mToTag, mCheckpointOut, mRotated, mProcessed),
+                        new ChunkTask(mIds, middle, mToChunk, mDone, mFromTag, mToTag, mCheckpointOut, mRotated, mProcessed));
+                return;
+            }
+            if (mFromChunk >= mToChunk || mDone.get(mFromChunk))
+                return;
+            try {
+                rotateChunk(mFromChunk);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new RotationException(e);
+            }
+        }
+
+        private void rotateChunk(int chunk) throws IOException, GeneralSecurityException {
+            final int start = chunk * CHUNK_SIZE;
+            final int end = Math.min(mIds.size(), start + CHUNK_SIZE);
+            final Cipher decrypt = Cipher.getInstance(TRANSFORMATION);
+            final Cipher encrypt = Cipher.getInstance(TRANSFORMATION);
+            final SecureRandom random = new SecureRandom();
+            final Map<String, byte[]> sealed = new LinkedHashMap<>();
+            for (int i = start; i < end; i++) {
+                final String id = mIds.get(i);
+                final byte[] record = mStore.read(id);
+                if (hasTag(record, mFromTag)) {
+                    final byte[] plain = open(decrypt, mFrom, record);
+                    sealed.put(id, seal(encrypt, random, mTo, mToTag, plain));
+                    Arrays.fill(plain, (byte) 0);
+                } else if (!hasTag(record, mToTag)) {
+                    throw new GeneralSecurityException("Record " + id + " is under neither key.");
+                }
+                final int processed = mProcessed.incrementAndGet();
+                if (mListener != null)
+                    mListener.onProgress(Math.min(processed, mIds.size()), mIds.size());
+            }
+            // The chunk only counts as done once its records are written
+            if (mStore instanceof BatchPayloadStore) {
+                ((BatchPayloadStore) mStore).write(sealed);
+            } else {
+                for (Map.Entry<String, byte[]> record : sealed.entrySet())
+                    mStore.write(record.getKey(), record.getValue());
+            }
+            mRotated.addAndGet(sealed.size());
+            synchronized (mCheckpointOut) {
+                mCheckpointOut.writeInt(chunk);
+                mCheckpointOut.flush();
+            }
+        }
+    }
+
+    /**
+     * Carries a checked exception out of the pool.
+     */
+    private static class RotationException extends RuntimeException {
+        RotationException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    // Checkpoint file: a fingerprint of the ID list and keys, then the index of each finished chunk.
+
+    private BitSet readCheckpoint(long fingerprint, int chunks) throws IOException {
+        final BitSet done = new BitSet(chunks);
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(mCheckpoint));
+        } catch (FileNotFoundException e) {
+            return done;
+        }
+        try {
+            if (in.readLong() != fingerprint)
+                // Made for other records or keys; the tags alone still avoid duplicate work
+                return new BitSet(chunks);
+            while (true) {
+                final int chunk = in.readInt();
+                if (chunk >= 0 && chunk < chunks)
+                    done.set(chunk);
+            }
+        } catch (EOFException e) {
+            // A chunk index cut short by process death is simply not counted
+            return done;
+        } finally {
+            in.close();
+        }
+    }
+
+    private DataOutputStream openCheckpoint(long fingerprint, boolean resume) throws IOException {
+        final FileOutputStream out = new FileOutputStream(mCheckpoint, resume);
+        final DataOutputStream checkpoint = new DataOutputStream(out);
+        if (!resume) {
+            checkpoint.writeLong(fingerprint);
+            checkpoint.flush();
+        }
+        return checkpoint;
+    }
+
+    private static long fingerprint(List<String> ids, byte[] fromTag, byte[] toTag) throws GeneralSecurityException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(fromTag);
+        digest.update(toTag);
+        for (String id : ids) {
+            digest.update(id.getBytes(UTF_8));
+            digest.update((byte) 0);
+        }
+        final byte[] hash = digest.digest();
+        long fingerprint = 0;
+        for (int i = 0; i < 8; i++)
+            fingerprint = (fingerprint << 8) | (hash[i] & 0xFF);
+        return fingerprint;
+    }
+
+    // Record format: version, key tag, IV, then the ciphertext and GCM tag. The version and key tag
+    // are authenticated as associated data.
+
+    /**
+     * Encrypts a payload into a record which a rotation can move to another key.
+     */
+    public static byte[] seal(SecretKey key, byte[] payload) throws GeneralSecurityException {
+        return seal(Cipher.getInstance(TRANSFORMATION), new SecureRandom(), key, tag(key), payload);
+    }
+
+    /**
+     * Decrypts a record made by {@link #seal(SecretKey, byte[])}.
+     *
+     * @throws GeneralSecurityException If the record isn't under the given key, or has been tampered with.
+     */
+    public static byte[] open(SecretKey key, byte[] record) throws GeneralSecurityException {
+        if (!hasTag(record, tag(key)))
+            throw new GeneralSecurityException("The record isn't under this key.");
+        return open(Cipher.getInstance(TRANSFORMATION), key, record);
+    }
+
+    static byte[] seal(Cipher cipher, SecureRandom random, SecretKey key, byte[] tag, byte[] payload)
+            throws GeneralSecurityException {
+        final byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        final byte[] record = new byte[HEADER_LENGTH + cipher.getOutputSize(payload.length)];
+        record[0] = VERSION;
+        System.arraycopy(tag, 0, record, 1, TAG_LENGTH);
+        System.arraycopy(iv, 0, record, AAD_LENGTH, IV_LENGTH);
+        cipher.updateAAD(record, 0, AAD_LENGTH);
+        final int length = cipher.doFinal(payload, 0, payload.length, record, HEADER_LENGTH);
+        return length == record.length - HEADER_LENGTH ? record : Arrays.copyOf(record, HEADER_LENGTH + length);
+    }
+
+    static byte[] open(Cipher cipher, SecretKey key, byte[] record) throws GeneralSecurityException {
+        if (record.length < HEADER_LENGTH + GCM_TAG_BITS / 8 || record[0] != VERSION)
+            throw new GeneralSecurityException("Not a record of version " + VERSION + ".");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, record, AAD_LENGTH, IV_LENGTH));
+        cipher.updateAAD(record, 0, AAD_LENGTH);
+        return cipher.doFinal(record, HEADER_LENGTH, record.length - HEADER_LENGTH);
+    }
+
+    static boolean hasTag(byte[] record, byte[] tag) {
+        if (record.length < HEADER_LENGTH || record[0] != VERSION)
+            return false;
+        for (int i = 0; i < TAG_LENGTH; i++) {
+            if (record[1 + i] != tag[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return A short, public identifier for the key.
+     */
+    static byte[] tag(SecretKey key) throws GeneralSecurityException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update("digitus-key-tag".getBytes(UTF_8));
+        return Arrays.copyOf(digest.digest(key.getEncoded()), TAG_LENGTH);
+    }
+}
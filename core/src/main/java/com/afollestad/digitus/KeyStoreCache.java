@@ -0,0 +1,119 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Holds a loaded AndroidKeyStore handle along with the {@link SecretKey}s looked up from it, so
+ * repeated authentications don't have to go back to the keystore daemon each time. Cached keys are
+ * only dropped when they're permanently invalidated, recreated, or when Digitus is deinitialized.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class KeyStoreCache {
+
+    private final KeyStore mKeyStore;
+    private final Map<String, SecretKey> mKeys = new ConcurrentHashMap<>();
+    private volatile boolean mLoaded;
+
+    private final AtomicLong mReloads = new AtomicLong();
+    private final AtomicLong mReloadsAvoided = new AtomicLong();
+    private final AtomicLong mKeyLookups = new AtomicLong();
+    private final AtomicLong mKeyLookupsAvoided = new AtomicLong();
+
+    KeyStoreCache(KeyStore keyStore) {
+        mKeyStore = keyStore;
+    }
+
+    /**
+     * @return The keystore, loading it first if that hasn't happened yet.
+     */
+    KeyStore keyStore() throws CertificateException, NoSuchAlgorithmException, IOException {
+        if (!mLoaded) {
+            synchronized (this) {
+                if (!mLoaded) {
+                    mKeyStore.load(null);
+                    mLoaded = true;
+                    mReloads.incrementAndGet();
+                    return mKeyStore;
+                }
+            }
+        }
+        mReloadsAvoided.incrementAndGet();
+        return mKeyStore;
+    }
+
+    boolean containsAlias(String alias) throws KeyStoreException, CertificateException,
+            NoSuchAlgorithmException, IOException {
+        return mKeys.containsKey(alias) || keyStore().containsAlias(alias);
+    }
+
+    /**
+     * @return The key stored under the alias, or null if there is none.
+     */
+    SecretKey getKey(String alias) throws KeyStoreException, CertificateException,
+            NoSuchAlgorithmException, IOException, UnrecoverableKeyException {
+        SecretKey key = mKeys.get(alias);
+        if (key != null) {
+            mKeyLookupsAvoided.incrementAndGet();
+            return key;
+        }
+        key = (SecretKey) keyStore().getKey(alias, null);
+        mKeyLookups.incrementAndGet();
+        if (key != null)
+            mKeys.put(alias, key);
+        return key;
+    }
+
+    /**
+     * Caches a key that was just generated, replacing whatever was cached for the alias before.
+     */
+    void putKey(String alias, SecretKey key) {
+        mKeys.put(alias, key);
+    }
+
+    void invalidate(String alias) {
+        mKeys.remove(alias);
+    }
+
+    /**
+     * @return How many times the keystore has actually been loaded.
+     */
+    public long getReloads() {
+        return mReloads.get();
+    }
+
+    /**
+     * @return How many keystore loads were skipped because the handle was already loaded.
+     */
+    public long getReloadsAvoided() {
+        return mReloadsAvoided.get();
+    }
+
+    /**
+     * @return How many times a key had to be looked up from the keystore.
+     */
+    public long getKeyLookups() {
+        return mKeyLookups.get();
+    }
+
+    /**
+     * @return How many key lookups were served from the cache instead of the keystore.
+     */
+    public long getKeyLookupsAvoided() {
+        return mKeyLookupsAvoided.get();
+    }
+}
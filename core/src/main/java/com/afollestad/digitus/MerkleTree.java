@@ -0,0 +1,94 @@
+package com.afollestad.digitus;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SHA-256 Merkle tree over a batch of challenges, so that one signature over its root covers every
+ * challenge in it. Leaves and inner nodes are hashed with different prefixes, so a node can't be
+ * passed off as a leaf. A node without a sibling is carried up to the next level as is.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class MerkleTree {
+
+    static final String DIGEST = "SHA-256";
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    // Level 0 holds the leaf hashes, the last level holds the root alone.
+    private final List<byte[][]> mLevels = new ArrayList<>();
+
+    public MerkleTree(List<byte[]> challenges) {
+        if (challenges.isEmpty())
+            throw new IllegalArgumentException("A batch needs at least one challenge.");
+        final MessageDigest digest = newDigest();
+        byte[][] level = new byte[challenges.size()][];
+        for (int i = 0; i < level.length; i++)
+            level[i] = hashLeaf(digest, challenges.get(i));
+        mLevels.add(level);
+        while (level.length > 1) {
+            final byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                final int left = i * 2;
+                parents[i] = left + 1 < level.length
+                        ? hashNode(digest, level[left], level[left + 1]) : level[left];
+            }
+            mLevels.add(parents);
+            level = parents;
+        }
+    }
+
+    public int size() {
+        return mLevels.get(0).length;
+    }
+
+    public byte[] getRoot() {
+        return mLevels.get(mLevels.size() - 1)[0].clone();
+    }
+
+    /**
+     * @return The sibling hashes needed to recompute the root from the challenge at the given index.
+     */
+    public InclusionProof getProof(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("No challenge at index " + index);
+        final List<byte[]> siblings = new ArrayList<>();
+        final List<Boolean> onLeft = new ArrayList<>();
+        int position = index;
+        for (int i = 0; i < mLevels.size() - 1; i++) {
+            final byte[][] level = mLevels.get(i);
+            final int sibling = position ^ 1;
+            if (sibling < level.length) {
+                siblings.add(level[sibling]);
+                onLeft.add(sibling < position);
+            }
+            position /= 2;
+        }
+        final boolean[] sides = new boolean[onLeft.size()];
+        for (int i = 0; i < sides.length; i++)
+            sides[i] = onLeft.get(i);
+        return new InclusionProof(index, siblings.toArray(new byte[siblings.size()][]), sides);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static byte[] hashLeaf(MessageDigest digest, byte[] challenge) {
+        digest.update(LEAF_PREFIX);
+        return digest.digest(challenge);
+    }
+
+    static byte[] hashNode(MessageDigest digest, byte[] left, byte[] right) {
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        return digest.digest(right);
+    }
+}
@@ -0,0 +1,87 @@
+package com.afollestad.digitus;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A single run of a {@link PasswordValidator} on its executor. The result is delivered on the main
+ * thread, unless the validation is cancelled or times out first.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class PasswordValidation extends FutureTask<Boolean> {
+
+    interface Listener {
+
+        void onPasswordValidated(boolean valid);
+
+        void onPasswordValidationTimedOut();
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Listener mListener;
+    private volatile boolean mDiscarded;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (cancel(true))
+                mListener.onPasswordValidationTimedOut();
+        }
+    };
+
+    PasswordValidation(final PasswordValidator validator, final String password, Listener listener) {
+        super(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return validator.isValid(password);
+            }
+        });
+        mListener = listener;
+    }
+
+    /**
+     * Runs the validation on the executor, timing out after the given amount of time unless it's 0.
+     */
+    PasswordValidation start(Executor executor, long timeoutMillis) {
+        if (timeoutMillis > 0)
+            sMainHandler.postDelayed(mTimeoutRunnable, timeoutMillis);
+        executor.execute(this);
+        return this;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        // A result which was already posted to the main thread must not be delivered anymore either
+        mDiscarded = true;
+        sMainHandler.removeCallbacks(mTimeoutRunnable);
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    protected void done() {
+        sMainHandler.removeCallbacks(mTimeoutRunnable);
+        if (isCancelled())
+            return;
+        boolean valid;
+        try {
+            valid = get();
+        } catch (InterruptedException | ExecutionException e) {
+            valid = false;
+        }
+        final boolean result = valid;
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mDiscarded)
+                    mListener.onPasswordValidated(result);
+            }
+        });
+    }
+}
@@ -0,0 +1,16 @@
+package com.afollestad.digitus;
+
+/**
+ * Checks the password entered in the backup stage of the authentication dialog. Set one with
+ * {@link Digitus#setPasswordValidator}; it's invoked on the executor given there, so it's free to
+ * block, and {@link DigitusCallback#onDigitusValidatePassword(String)} is no longer called.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface PasswordValidator {
+
+    /**
+     * @return True if the password is correct. Throwing counts as an incorrect password.
+     */
+    boolean isValid(String password) throws Exception;
+}
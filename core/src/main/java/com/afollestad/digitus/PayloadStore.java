@@ -0,0 +1,23 @@
+package com.afollestad.digitus;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The app's encrypted records, as seen by a {@link KeyRotation}. Records must have been sealed with
+ * {@link KeyRotation#seal(javax.crypto.SecretKey, byte[])}, so the rotation can tell which key each
+ * one is under. Methods are called from several threads at once.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface PayloadStore {
+
+    /**
+     * @return The IDs of all records to rotate.
+     */
+    List<String> getIds() throws IOException;
+
+    byte[] read(String id) throws IOException;
+
+    void write(String id, byte[] record) throws IOException;
+}
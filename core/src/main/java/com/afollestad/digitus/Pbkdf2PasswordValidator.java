@@ -0,0 +1,182 @@
+package com.afollestad.digitus;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * A {@link PasswordValidator} which stores a salted PBKDF2 hash of the password in private
+ * preferences. It uses HMAC-SHA256 where the platform has it (Android O and up), and HMAC-SHA1
+ * otherwise; either way the hash is exactly as long as the HMAC's output, since every extra block
+ * would double the work of the device without slowing down an attacker, who only needs the first
+ * block to rule a guess out. The iteration count is tuned to the device once, when the password is
+ * set, and hashes are compared in constant time. Deriving a hash is slow on purpose, so never call
+ * {@link #setPassword(String)} or {@link #isValid(String)} from the main thread.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class Pbkdf2PasswordValidator implements PasswordValidator {
+
+    private static final String PREFS_NAME = "[digitus-password]";
+    private static final String SHA1 = "PBKDF2WithHmacSHA1";
+    private static final String SHA256 = "PBKDF2WithHmacSHA256";
+    private static final int SHA1_BITS = 160;
+    private static final int SHA256_BITS = 256;
+    /**
+     * Android O, the first version with PBKDF2WithHmacSHA256.
+     */
+    private static final int SHA256_SDK = 26;
+    private static final int SALT_LENGTH = 16;
+    private static final int CALIBRATION_ITERATIONS = 1000;
+    private static final int CALIBRATION_RUNS = 5;
+    private static final int MIN_ITERATIONS = 5000;
+    private static final int MAX_ITERATIONS = 500000;
+
+    /**
+     * How long deriving a hash should take on this device.
+     */
+    public static final long DEFAULT_TARGET_MILLIS = 150;
+
+    private final SharedPreferences mPrefs;
+    private final String mName;
+    private final long mTargetMillis;
+
+    public Pbkdf2PasswordValidator(Context context, String name) {
+        this(context, name, DEFAULT_TARGET_MILLIS);
+    }
+
+    /**
+     * @param name         Identifies the password, so several can be stored side by side.
+     * @param targetMillis How long deriving a hash should take, which determines the iteration count.
+     */
+    public Pbkdf2PasswordValidator(Context context, String name, long targetMillis) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mName = name;
+        mTargetMillis = targetMillis;
+    }
+
+    /**
+     * @return True if a password has been set.
+     */
+    public boolean hasPassword() {
+        return mPrefs.contains(mName + ":hash");
+    }
+
+    /**
+     * Hashes and stores a new password, tuning the iteration count first if that hasn't happened yet.
+     * This blocks for a while, see {@link #setPasswordAsync(String, Executor)}.
+     */
+    public void setPassword(String password) throws GeneralSecurityException {
+        final String algorithm = algorithm();
+        int iterations = mPrefs.getInt(mName + ":iterations", 0);
+        // Iterations tuned for another algorithm take another amount of time
+        if (iterations == 0 || !algorithm.equals(mPrefs.getString(mName + ":algorithm", SHA1)))
+            iterations = calibrate(algorithm);
+        final byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        final byte[] hash = derive(algorithm, password, salt, iterations, hashBits(algorithm));
+        mPrefs.edit()
+                .putString(mName + ":algorithm", algorithm)
+                .putString(mName + ":salt", Base64.encodeToString(salt, Base64.NO_WRAP))
+                .putString(mName + ":hash", Base64.encodeToString(hash, Base64.NO_WRAP))
+                .putInt(mName + ":iterations", iterations)
+                .apply();
+    }
+
+    private static String algorithm() {
+        return Build.VERSION.SDK_INT >= SHA256_SDK ? SHA256 : SHA1;
+    }
+
+    private static int hashBits(String algorithm) {
+        return SHA256.equals(algorithm) ? SHA256_BITS : SHA1_BITS;
+    }
+
+    /**
+     * Same as {@link #setPassword(String)}, but runs on the given executor.
+     */
+    public Future<Void> setPasswordAsync(final String password, Executor executor) {
+        final FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                setPassword(password);
+                return null;
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Forgets the stored password, along with the tuned iteration count.
+     */
+    public void clearPassword() {
+        mPrefs.edit()
+                .remove(mName + ":algorithm")
+                .remove(mName + ":salt")
+                .remove(mName + ":hash")
+                .remove(mName + ":iterations")
+                .apply();
+    }
+
+    @Override
+    public boolean isValid(String password) throws GeneralSecurityException {
+        final String storedHash = mPrefs.getString(mName + ":hash", null);
+        final String storedSalt = mPrefs.getString(mName + ":salt", null);
+        final int iterations = mPrefs.getInt(mName + ":iterations", 0);
+        if (storedHash == null || storedSalt == null || iterations == 0)
+            return false;
+        // Passwords stored before the algorithm was recorded are SHA1 hashes of 256 bits
+        final String algorithm = mPrefs.getString(mName + ":algorithm", SHA1);
+        final byte[] expected = Base64.decode(storedHash, Base64.NO_WRAP);
+        final byte[] actual = derive(algorithm, password, Base64.decode(storedSalt, Base64.NO_WRAP),
+                iterations, expected.length * 8);
+        return constantTimeEquals(expected, actual);
+    }
+
+    /**
+     * Times a few short derivations and scales the fastest up to the target duration. The first
+     * runs include warm-up, and the fastest is the least disturbed by whatever else the device does.
+     */
+    private int calibrate(String algorithm) throws GeneralSecurityException {
+        final byte[] salt = new byte[SALT_LENGTH];
+        final int bits = hashBits(algorithm);
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < CALIBRATION_RUNS; i++) {
+            final long start = System.nanoTime();
+            derive(algorithm, "calibration", salt, CALIBRATION_ITERATIONS, bits);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        final long iterations = CALIBRATION_ITERATIONS * (mTargetMillis * 1000000L) / Math.max(1, fastest);
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+    }
+
+    private static byte[] derive(String algorithm, String password, byte[] salt, int iterations, int bits)
+            throws GeneralSecurityException {
+        final PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+        try {
+            return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static boolean constantTimeEquals(byte[] a, byte[] b) {
+        if (a.length != b.length)
+            return false;
+        int result = 0;
+        for (int i = 0; i < a.length; i++)
+            result |= a[i] ^ b[i];
+        return result == 0;
+    }
+}
@@ -0,0 +1,341 @@
+package com.afollestad.digitus;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+import android.util.LruCache;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * A SharedPreferences-style store of small secrets, encrypted with the session key of a Digitus key
+ * name in envelope mode, see {@link Digitus#getStore(String)}. Values are sealed like
+ * {@link KeyRotation#seal(SecretKey, byte[])} does, so the store can be passed to
+ * {@link SessionKeys#rotate(String, char[], PayloadStore, java.io.File, int)} as is.
+ * <p/>
+ * Decrypted values are kept in a bounded LRU cache, so repeated reads within a session skip both
+ * the disk and the cipher. The cache is wiped as soon as the session key is evicted, which also
+ * happens on deinit and when the fingerprint key is invalidated. Edits are batched into a single
+ * asynchronous write when applied.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class SecureStore implements BatchPayloadStore, SessionKeyCache.EvictionListener {
+
+    /**
+     * The default size of the decrypted value cache, in bytes.
+     */
+    public static final int DEFAULT_CACHE_BYTES = 64 * 1024;
+
+    private static final String PREFS_NAME = "[digitus-store]";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String mKeyName;
+    private final SharedPreferences mPrefs;
+    private final ValueCache mCache;
+    private final Cipher mCipher;
+    private final SecureRandom mRandom = new SecureRandom();
+    private SecretKey mTagKey;
+    private byte[] mTag;
+
+    SecureStore(Context context, String keyName, int cacheBytes) {
+        mKeyName = keyName;
+        mPrefs = context.getApplicationContext().getSharedPreferences(
+                PREFS_NAME + keyName, Context.MODE_PRIVATE);
+        mCache = new ValueCache(cacheBytes);
+        try {
+            mCipher = Cipher.getInstance(KeyRotation.TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to get an instance of Cipher", e);
+        }
+        SessionKeyCache.get().addEvictionListener(this);
+    }
+
+    /**
+     * @return The session key, or an exception if the store is locked.
+     */
+    private SecretKey sessionKey() {
+        final SecretKey key = SessionKeyCache.get().getKey(mKeyName);
+        if (key == null)
+            throw new IllegalStateException("The store of " + mKeyName + " is locked, authenticate with fingerprint first.");
+        return key;
+    }
+
+    @Nullable
+    public String getString(String key, @Nullable String defValue) {
+        final byte[] value = get(key);
+        if (value == null)
+            return defValue;
+        final String string = new String(value, UTF_8);
+        Arrays.fill(value, (byte) 0);
+        return string;
+    }
+
+    /**
+     * @return A copy of the value, or null if there is none.
+     */
+    @Nullable
+    public byte[] getBytes(String key) {
+        return get(key);
+    }
+
+    public boolean contains(String key) {
+        return mPrefs.contains(key);
+    }
+
+    /**
+     * Values sealed under another session key, e.g. one that was lost when the fingerprint key was
+     * invalidated, read as missing.
+     *
+     * @return A copy of the value, which the caller owns.
+     */
+    @Nullable
+    private byte[] get(String key) {
+        // Looking the session key up first also evicts it, and wipes the cache, once it has expired
+        final SecretKey sessionKey = sessionKey();
+        byte[] value = mCache.copy(key);
+        if (value != null)
+            return value;
+        final String stored = mPrefs.getString(key, null);
+        if (stored == null)
+            return null;
+        final byte[] record = Base64.decode(stored, Base64.NO_WRAP);
+        synchronized (this) {
+            try {
+                if (!KeyRotation.hasTag(record, tag(sessionKey)))
+                    return null;
+                value = KeyRotation.open(mCipher, sessionKey, record);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("Failed to decrypt " + key, e);
+            }
+        }
+        cache(key, value.clone());
+        return value;
+    }
+
+    /**
+     * @param value Owned by the cache from now on, which wipes it once it's evicted.
+     */
+    private void cache(String key, byte[] value) {
+        mCache.put(key, value);
+        // The session key may have been evicted in the meantime, without the value being wiped
+        if (SessionKeyCache.get().getKey(mKeyName) == null)
+            mCache.evictAll();
+    }
+
+    private byte[] tag(SecretKey sessionKey) throws GeneralSecurityException {
+        if (mTagKey != sessionKey) {
+            mTag = KeyRotation.tag(sessionKey);
+            mTagKey = sessionKey;
+        }
+        return mTag;
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    /**
+     * Collects changes, which are encrypted and written together by {@link #apply()} or {@link #commit()}.
+     */
+    public final class Editor {
+
+        private final Map<String, byte[]> mPuts = new LinkedHashMap<>();
+        private final Set<String> mRemoves = new HashSet<>();
+        private boolean mClear;
+
+        private Editor() {
+        }
+
+        public Editor putString(String key, String value) {
+            return putBytes(key, value.getBytes(UTF_8));
+        }
+
+        /**
+         * The value is copied, so the caller can wipe its array afterwards.
+         */
+        public Editor putBytes(String key, byte[] value) {
+            mRemoves.remove(key);
+            mPuts.put(key, value.clone());
+            return this;
+        }
+
+        public Editor remove(String key) {
+            mPuts.remove(key);
+            mRemoves.add(key);
+            return this;
+        }
+
+        /**
+         * Like with SharedPreferences, the clear happens first, whatever order the changes were made in.
+         */
+        public Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        /**
+         * Encrypts the changes and updates the cache right away; the disk write happens in the
+         * background.
+         */
+        public void apply() {
+            prepare().apply();
+        }
+
+        /**
+         * Same as {@link #apply()}, but writes to disk before returning.
+         *
+         * @return True if the changes were written.
+         */
+        public boolean commit() {
+            return prepare().commit();
+        }
+
+        private SharedPreferences.Editor prepare() {
+            final SecretKey sessionKey = sessionKey();
+            final SharedPreferences.Editor editor = mPrefs.edit();
+            if (mClear) {
+                editor.clear();
+                mCache.evictAll();
+            }
+            for (String key : mRemoves) {
+                editor.remove(key);
+                mCache.remove(key);
+            }
+            synchronized (SecureStore.this) {
+                try {
+                    final byte[] tag = tag(sessionKey);
+                    for (Map.Entry<String, byte[]> put : mPuts.entrySet()) {
+                        final byte[] record = KeyRotation.seal(mCipher, mRandom, sessionKey, tag, put.getValue());
+                        editor.putString(put.getKey(), Base64.encodeToString(record, Base64.NO_WRAP));
+                    }
+                } catch (GeneralSecurityException e) {
+                    throw new RuntimeException("Failed to encrypt the store of " + mKeyName, e);
+                }
+            }
+            for (Map.Entry<String, byte[]> put : mPuts.entrySet())
+                cache(put.getKey(), put.getValue());
+            mPuts.clear();
+            mRemoves.clear();
+            mClear = false;
+            return editor;
+        }
+    }
+
+    /**
+     * Wipes the decrypted values, without touching what's stored.
+     */
+    public void clearCache() {
+        mCache.evictAll();
+    }
+
+    /**
+     * @return How many reads were served from the cache.
+     */
+    public int getCacheHits() {
+        return mCache.hitCount();
+    }
+
+    @Override
+    public void onSessionKeyEvicted(String keyName) {
+        if (mKeyName.equals(keyName))
+            mCache.evictAll();
+    }
+
+    /**
+     * Wipes the cache and stops listening for evictions.
+     */
+    void close() {
+        SessionKeyCache.get().removeEvictionListener(this);
+        mCache.evictAll();
+    }
+
+    // BatchPayloadStore, which deals in sealed records so a rotation can move them to another key
+
+    @Override
+    public List<String> getIds() {
+        return new ArrayList<>(mPrefs.getAll().keySet());
+    }
+
+    @Override
+    public byte[] read(String id) {
+        return Base64.decode(mPrefs.getString(id, null), Base64.NO_WRAP);
+    }
+
+    @Override
+    public void write(String id, byte[] record) {
+        mCache.remove(id);
+        mPrefs.edit().putString(id, Base64.encodeToString(record, Base64.NO_WRAP)).commit();
+    }
+
+    /**
+     * Writes a whole chunk of a rotation with one commit, since every commit rewrites the entire file.
+     */
+    @Override
+    public void write(Map<String, byte[]> records) {
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        for (Map.Entry<String, byte[]> record : records.entrySet()) {
+            mCache.remove(record.getKey());
+            editor.putString(record.getKey(), Base64.encodeToString(record.getValue(), Base64.NO_WRAP));
+        }
+        editor.commit();
+    }
+
+    /**
+     * Decrypted values by key, wiped when they're evicted. LruCache calls entryRemoved() outside of its
+     * own lock, so every access goes through this class's lock, and values are only handed out as copies.
+     */
+    private static final class ValueCache {
+
+        private final LruCache<String, byte[]> mValues;
+
+        ValueCache(int maxBytes) {
+            mValues = new LruCache<String, byte[]>(maxBytes) {
+                @Override
+                protected int sizeOf(String key, byte[] value) {
+                    return value.length;
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, byte[] oldValue, byte[] newValue) {
+                    Arrays.fill(oldValue, (byte) 0);
+                }
+            };
+        }
+
+        @Nullable
+        synchronized byte[] copy(String key) {
+            final byte[] value = mValues.get(key);
+            return value != null ? value.clone() : null;
+        }
+
+        synchronized void put(String key, byte[] value) {
+            mValues.put(key, value);
+        }
+
+        synchronized void remove(String key) {
+            mValues.remove(key);
+        }
+
+        synchronized void evictAll() {
+            mValues.evictAll();
+        }
+
+        int hitCount() {
+            return mValues.hitCount();
+        }
+    }
+}
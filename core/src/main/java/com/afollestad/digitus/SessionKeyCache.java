@@ -0,0 +1,174 @@
+package com.afollestad.digitus;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Holds the data keys unlocked by a fingerprint authentication in envelope mode, keyed by Digitus
+ * key name. Keys expire after their time to live, the least recently used key is dropped once the
+ * cache is full, and everything can be evicted explicitly, e.g. when the screen turns off.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class SessionKeyCache {
+
+    public static final int DEFAULT_MAX_SIZE = 8;
+
+    /**
+     * Notified whenever a session key is evicted, for whatever reason.
+     */
+    public interface EvictionListener {
+
+        void onSessionKeyEvicted(String keyName);
+    }
+
+    private static SessionKeyCache sInstance;
+
+    private final Map<String, CachedKey> mEntries;
+    private final List<EvictionListener> mListeners = new CopyOnWriteArrayList<>();
+    private BroadcastReceiver mScreenOffReceiver;
+
+    private static final class CachedKey {
+        final SecretKey key;
+        final long expiresAt;
+
+        CachedKey(SecretKey key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private SessionKeyCache(final int maxSize) {
+        mEntries = new LinkedHashMap<String, CachedKey>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public static synchronized SessionKeyCache get() {
+        if (sInstance == null)
+            sInstance = new SessionKeyCache(DEFAULT_MAX_SIZE);
+        return sInstance;
+    }
+
+    /**
+     * @return The session key for the key name, or null if there is none or it has expired.
+     */
+    @Nullable
+    public SecretKey getKey(String keyName) {
+        final CachedKey entry;
+        synchronized (this) {
+            entry = mEntries.get(keyName);
+            if (entry == null)
+                return null;
+            if (entry.expiresAt > SystemClock.elapsedRealtime())
+                return entry.key;
+            mEntries.remove(keyName);
+        }
+        notifyEvicted(keyName);
+        return null;
+    }
+
+    void putKey(String keyName, SecretKey key, long ttlMillis) {
+        final List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            final List<String> names = new ArrayList<>(mEntries.keySet());
+            mEntries.put(keyName, new CachedKey(key, SystemClock.elapsedRealtime() + ttlMillis));
+            // Find out which key, if any, was pushed out to make room
+            for (String name : names) {
+                if (!mEntries.containsKey(name))
+                    evicted.add(name);
+            }
+        }
+        for (String name : evicted)
+            notifyEvicted(name);
+    }
+
+    /**
+     * Drops the session key for a single key name.
+     */
+    public void evict(String keyName) {
+        final boolean removed;
+        synchronized (this) {
+            removed = mEntries.remove(keyName) != null;
+        }
+        if (removed) notifyEvicted(keyName);
+    }
+
+    /**
+     * Drops every session key.
+     */
+    public void evictAll() {
+        final List<String> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(mEntries.keySet());
+            mEntries.clear();
+        }
+        for (String name : evicted)
+            notifyEvicted(name);
+    }
+
+    /**
+     * Drops session keys whose time to live has passed.
+     */
+    public void evictExpired() {
+        final List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            final long now = SystemClock.elapsedRealtime();
+            final Iterator<Map.Entry<String, CachedKey>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, CachedKey> entry = iterator.next();
+                if (entry.getValue().expiresAt <= now) {
+                    evicted.add(entry.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+        for (String name : evicted)
+            notifyEvicted(name);
+    }
+
+    /**
+     * Evicts every session key whenever the screen turns off. Only the application context is held on to.
+     */
+    public synchronized void evictOnScreenOff(Context context) {
+        if (mScreenOffReceiver != null)
+            return;
+        mScreenOffReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                evictAll();
+            }
+        };
+        context.getApplicationContext().registerReceiver(mScreenOffReceiver,
+                new IntentFilter(Intent.ACTION_SCREEN_OFF));
+    }
+
+    public void addEvictionListener(EvictionListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeEvictionListener(EvictionListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyEvicted(String keyName) {
+        for (EvictionListener listener : mListeners)
+            listener.onSessionKeyEvicted(keyName);
+    }
+}
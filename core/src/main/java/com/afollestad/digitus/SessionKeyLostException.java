@@ -0,0 +1,26 @@
+package com.afollestad.digitus;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Reported to {@link DigitusCallback#onDigitusError(Exception)} in envelope mode when the session key
+ * in use can't be unlocked: a new fingerprint invalidated the key that wrapped it, or the process died
+ * before a recovered key was wrapped again. The user is still authenticated. Recover the key with the
+ * password they just entered, see {@link SessionKeys#recover(String, char[])}, or give up on what it
+ * encrypted with {@link SessionKeys#discard(String)}. Nothing is sealed with a new key until then.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class SessionKeyLostException extends GeneralSecurityException {
+
+    private final String mKeyName;
+
+    SessionKeyLostException(String keyName) {
+        super("The session key of " + keyName + " has to be recovered from escrow.");
+        mKeyName = keyName;
+    }
+
+    public String getKeyName() {
+        return mKeyName;
+    }
+}
@@ -0,0 +1,100 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Keeps the session key of a key name in envelope mode from being lost with its fingerprint key:
+ * it's escrowed with the user's password, recovered with it, or rotated away from along with every
+ * record it encrypts. See {@link Digitus#enableEnvelope(long)} and {@link SessionKeyLostException}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class SessionKeys {
+
+    private SessionKeys() {
+    }
+
+    /**
+     * Escrows the session key of the given key name with the user's password, see {@link KeyEscrow}.
+     * It can then be recovered, or rotated away from, after a new fingerprint has invalidated the key
+     * that wraps it. Slow, so call it from a background thread.
+     *
+     * @throws IllegalStateException If the session key isn't unlocked.
+     */
+    public static void escrow(String keyName, char[] password) throws GeneralSecurityException {
+        final Digitus digitus = Digitus.invalidate(keyName);
+        final SecretKey key = SessionKeyCache.get().getKey(keyName);
+        if (key == null)
+            throw new IllegalStateException("The session key of " + keyName + " isn't unlocked.");
+        new KeyEscrow(digitus.mAppContext).escrow(keyName, key, password);
+    }
+
+    /**
+     * @return True if the session key is lost, see {@link SessionKeyLostException}.
+     */
+    public static boolean isRecoveryNeeded(String keyName) {
+        return Digitus.invalidate(keyName).mEnvelope.isRecoveryNeeded();
+    }
+
+    /**
+     * Recovers the escrowed session key with the user's password and makes it the one in use again,
+     * e.g. after a new fingerprint was enrolled. The next fingerprint authentication wraps it with the
+     * new fingerprint key. Slow, so call it from a background thread.
+     */
+    public static SecretKey recover(String keyName, char[] password) throws GeneralSecurityException {
+        final Digitus digitus = Digitus.invalidate(keyName);
+        final SecretKey key = new KeyEscrow(digitus.mAppContext).recover(keyName, password);
+        if (key == null)
+            throw new IllegalStateException("Nothing has been escrowed for " + keyName + ".");
+        digitus.mEnvelope.adopt(key);
+        return key;
+    }
+
+    /**
+     * Moves every record of the store from the escrowed session key to a new one, which then becomes
+     * the session key in use and is escrowed in its place. The new key is escrowed and adopted before
+     * any record is touched, so records which haven't been moved yet read as missing until it's done.
+     * A rotation interrupted by process death reports a {@link SessionKeyLostException}, and resumes,
+     * with the same checkpoint file, when this is called again. Blocks until done, so call it from a
+     * background thread.
+     *
+     * @param parallelism How many records are re-encrypted at the same time, at most.
+     * @return The new session key.
+     * @see KeyRotation
+     */
+    public static SecretKey rotate(String keyName, char[] password, PayloadStore store,
+                                   File checkpoint, int parallelism) throws IOException, GeneralSecurityException {
+        final Digitus digitus = Digitus.invalidate(keyName);
+        final KeyEscrow escrow = new KeyEscrow(digitus.mAppContext);
+        final SecretKey from = escrow.recover(keyName, KeyEscrow.CURRENT, password);
+        if (from == null)
+            throw new IllegalStateException("Nothing has been escrowed for " + keyName + ".");
+        SecretKey to = escrow.recover(keyName, KeyEscrow.NEXT, password);
+        if (to == null) {
+            to = EnvelopeKey.generateDataKey();
+            escrow.escrow(keyName, KeyEscrow.NEXT, to, password);
+        }
+        // Adopted first, so after process death the lost key points back here rather than to the old one
+        digitus.mEnvelope.adopt(to);
+        new KeyRotation(from, to, store, checkpoint, parallelism).run();
+        escrow.escrow(keyName, KeyEscrow.CURRENT, to, password);
+        escrow.remove(keyName, KeyEscrow.NEXT);
+        return to;
+    }
+
+    /**
+     * Gives up on a lost session key, e.g. when none was escrowed, so the next fingerprint
+     * authentication generates a new one. Whatever the old key encrypted can't be read anymore.
+     */
+    public static void discard(String keyName) {
+        Digitus.invalidate(keyName).mEnvelope.discard();
+    }
+}
@@ -0,0 +1,49 @@
+package com.afollestad.digitus;
+
+import java.security.PublicKey;
+
+/**
+ * The result of signing a batch of challenges with one fingerprint authentication: a signature over
+ * the root of their {@link MerkleTree}, and an {@link InclusionProof} for each challenge.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class SignedBatch {
+
+    private final MerkleTree mTree;
+    private final byte[] mSignature;
+    private final PublicKey mPublicKey;
+
+    SignedBatch(MerkleTree tree, byte[] signature, PublicKey publicKey) {
+        mTree = tree;
+        mSignature = signature;
+        mPublicKey = publicKey;
+    }
+
+    public int size() {
+        return mTree.size();
+    }
+
+    public byte[] getRoot() {
+        return mTree.getRoot();
+    }
+
+    /**
+     * @return The signature over {@link #getRoot()}, in the format of {@link BatchSigner#SIGNATURE_ALGORITHM}.
+     */
+    public byte[] getSignature() {
+        return mSignature.clone();
+    }
+
+    /**
+     * @return The public key the signature verifies with. It only changes when a new fingerprint has
+     * invalidated the signing key, see {@link BatchKeyInvalidatedException}.
+     */
+    public PublicKey getPublicKey() {
+        return mPublicKey;
+    }
+
+    public InclusionProof getProof(int index) {
+        return mTree.getProof(index);
+    }
+}
@@ -0,0 +1,219 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link FingerprintSensor} which replays scripted event timelines instead of reading a finger,
+ * e.g. to drive Digitus under Robolectric or to stress rapid success, failure, help, error, lockout
+ * and cancellation sequences. Each call to {@link #authenticate} plays the next enqueued
+ * {@link Script}; with none left, the sensor just keeps listening like a real one nobody touches.
+ * <p/>
+ * Events are posted to the Looper of the thread that started authenticating (the main thread when
+ * it has none), the same as {@link FingerprintManager} does, so a paused Robolectric Looper controls
+ * when they arrive. Cancelling the signal stops the timeline and delivers
+ * {@link FingerprintManager#FINGERPRINT_ERROR_CANCELED}, again like the system does.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class SimulatedFingerprintSensor implements FingerprintSensor {
+
+    /**
+     * A timeline of sensor events. Delays are relative to the previous event, 0 to deliver it in the
+     * next message. Timelines stop at the first error or success, as real ones do.
+     */
+    public static class Script {
+
+        private static final int FAILED = 0;
+        private static final int HELP = 1;
+        private static final int ERROR = 2;
+        private static final int SUCCEEDED = 3;
+
+        private final List<long[]> mEvents = new ArrayList<>();
+        private final List<CharSequence> mMessages = new ArrayList<>();
+
+        private Script add(int type, long delayMillis, int code, CharSequence message) {
+            if (delayMillis < 0)
+                throw new IllegalArgumentException("Delays can't be negative.");
+            mEvents.add(new long[]{type, delayMillis, code});
+            mMessages.add(message);
+            return this;
+        }
+
+        public Script failed(long delayMillis) {
+            return add(FAILED, delayMillis, 0, null);
+        }
+
+        public Script help(long delayMillis, int helpCode, CharSequence helpString) {
+            return add(HELP, delayMillis, helpCode, helpString);
+        }
+
+        public Script error(long delayMillis, int errorCode, CharSequence errString) {
+            return add(ERROR, delayMillis, errorCode, errString);
+        }
+
+        public Script lockout(long delayMillis) {
+            return error(delayMillis, FingerprintManager.FINGERPRINT_ERROR_LOCKOUT,
+                    "Too many attempts. Try again later.");
+        }
+
+        public Script succeeded(long delayMillis) {
+            return add(SUCCEEDED, delayMillis, 0, null);
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Script> mScripts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mAuthenticateCount = new AtomicInteger();
+    private final AtomicInteger mCancelCount = new AtomicInteger();
+    private volatile boolean mHardwareDetected = true;
+    private volatile boolean mEnrolled = true;
+    private volatile Session mSession;
+
+    public SimulatedFingerprintSensor setHardwareDetected(boolean hardwareDetected) {
+        mHardwareDetected = hardwareDetected;
+        return this;
+    }
+
+    public SimulatedFingerprintSensor setEnrolled(boolean enrolled) {
+        mEnrolled = enrolled;
+        return this;
+    }
+
+    /**
+     * Queues a timeline to be played by a later call to {@link #authenticate}.
+     */
+    public SimulatedFingerprintSensor enqueue(Script script) {
+        mScripts.add(script);
+        return this;
+    }
+
+    /**
+     * @return True if a timeline is playing or waiting for a script, i.e. not finished or cancelled.
+     */
+    public boolean isListening() {
+        return mSession != null;
+    }
+
+    /**
+     * @return How many times {@link #authenticate} has been called.
+     */
+    public int getAuthenticateCount() {
+        return mAuthenticateCount.get();
+    }
+
+    /**
+     * @return How many listening sessions have been cancelled before they finished.
+     */
+    public int getCancelCount() {
+        return mCancelCount.get();
+    }
+
+    @Override
+    public boolean isHardwareDetected() {
+        return mHardwareDetected;
+    }
+
+    @Override
+    public boolean hasEnrolledFingerprints() {
+        return mEnrolled;
+    }
+
+    @Override
+    public void authenticate(@Nullable FingerprintManager.CryptoObject crypto, CancellationSignal cancel,
+                             FingerprintManager.AuthenticationCallback callback) {
+        mAuthenticateCount.incrementAndGet();
+        if (cancel.isCanceled())
+            return;
+        Looper looper = Looper.myLooper();
+        if (looper == null)
+            looper = Looper.getMainLooper();
+        final Session session = new Session(new Handler(looper), mScripts.poll(), callback);
+        mSession = session;
+        cancel.setOnCancelListener(session);
+        session.next();
+    }
+
+    /**
+     * Plays one script for one call to {@link #authenticate}.
+     */
+    private class Session implements Runnable, CancellationSignal.OnCancelListener {
+
+        private final Handler mHandler;
+        private final Script mScript;
+        private final FingerprintManager.AuthenticationCallback mCallback;
+        private int mIndex;
+        private boolean mFinished;
+
+        Session(Handler handler, @Nullable Script script, FingerprintManager.AuthenticationCallback callback) {
+            mHandler = handler;
+            mScript = script;
+            mCallback = callback;
+        }
+
+        void next() {
+            if (mScript == null || mIndex >= mScript.mEvents.size())
+                return;
+            mHandler.postDelayed(this, mScript.mEvents.get(mIndex)[1]);
+        }
+
+        private void finish() {
+            mFinished = true;
+            if (mSession == this)
+                mSession = null;
+        }
+
+        @Override
+        public void run() {
+            if (mFinished)
+                return;
+            final long[] event = mScript.mEvents.get(mIndex);
+            final CharSequence message = mScript.mMessages.get(mIndex);
+            mIndex++;
+            switch ((int) event[0]) {
+                case Script.FAILED:
+                    mCallback.onAuthenticationFailed();
+                    break;
+                case Script.HELP:
+                    mCallback.onAuthenticationHelp((int) event[2], message);
+                    break;
+                case Script.ERROR:
+                    finish();
+                    mCallback.onAuthenticationError((int) event[2], message);
+                    return;
+                case Script.SUCCEEDED:
+                    finish();
+                    // The engine doesn't read the result, and its constructor is hidden from apps.
+                    mCallback.onAuthenticationSucceeded(null);
+                    return;
+            }
+            next();
+        }
+
+        @Override
+        public void onCancel() {
+            if (mFinished)
+                return;
+            finish();
+            mCancelCount.incrementAndGet();
+            mHandler.removeCallbacks(this);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onAuthenticationError(FingerprintManager.FINGERPRINT_ERROR_CANCELED,
+                            "Fingerprint operation cancelled.");
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.afollestad.digitus;
+
+/**
+ * Enumeration to indicate which authentication method the user is trying to authenticate with.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public enum Stage {
+    FINGERPRINT,
+    NEW_FINGERPRINT_ENROLLED,
+    PASSWORD
+}
@@ -0,0 +1,53 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.support.annotation.Nullable;
+
+/**
+ * The device's fingerprint sensor, as exposed by {@link FingerprintManager}. When created with a
+ * Context, availability is read from the cached {@link DeviceCapabilities} rather than asked of the
+ * system every time.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@TargetApi(Build.VERSION_CODES.M)
+@SuppressWarnings("ResourceType")
+public class SystemFingerprintSensor implements FingerprintSensor {
+
+    private final FingerprintManager mFingerprintManager;
+    private final Context mContext;
+
+    public SystemFingerprintSensor(FingerprintManager fingerprintManager) {
+        mFingerprintManager = fingerprintManager;
+        mContext = null;
+    }
+
+    public SystemFingerprintSensor(Context context) {
+        mFingerprintManager = context.getSystemService(FingerprintManager.class);
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public boolean isHardwareDetected() {
+        if (mContext != null)
+            return DeviceCapabilities.get(mContext).isHardwareDetected();
+        return mFingerprintManager.isHardwareDetected();
+    }
+
+    @Override
+    public boolean hasEnrolledFingerprints() {
+        if (mContext != null)
+            return DeviceCapabilities.get(mContext).hasEnrolledFingerprints();
+        return mFingerprintManager.hasEnrolledFingerprints();
+    }
+
+    @Override
+    public void authenticate(@Nullable FingerprintManager.CryptoObject crypto, CancellationSignal cancel,
+                             FingerprintManager.AuthenticationCallback callback) {
+        mFingerprintManager.authenticate(crypto, cancel, 0 /* flags */, callback, null);
+    }
+}
@@ -0,0 +1,171 @@
+package com.afollestad.digitus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Signs {@link MerkleTree} roots with a software EC key, then checks them along with their
+ * {@link InclusionProof}s the way a server would, with {@link BatchVerifier}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class BatchVerifierTest {
+
+    private KeyPair mKeyPair;
+
+    @Before
+    public void setUp() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(BatchSigner.CURVE));
+        mKeyPair = generator.generateKeyPair();
+    }
+
+    private static List<byte[]> challenges(int count) {
+        final List<byte[]> challenges = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            challenges.add(("transaction-" + i).getBytes());
+        return challenges;
+    }
+
+    private byte[] sign(byte[] root) throws Exception {
+        final Signature signature = Signature.getInstance(BatchSigner.SIGNATURE_ALGORITHM);
+        signature.initSign(mKeyPair.getPrivate());
+        signature.update(root);
+        return signature.sign();
+    }
+
+    private static byte[] flip(byte[] bytes) {
+        final byte[] flipped = bytes.clone();
+        flipped[0] ^= 1;
+        return flipped;
+    }
+
+    @Test
+    public void everyProofLeadsToTheRoot() throws Exception {
+        // Odd counts leave a node without a sibling on some level
+        for (int count = 1; count <= 17; count++) {
+            final List<byte[]> challenges = challenges(count);
+            final MerkleTree tree = new MerkleTree(challenges);
+            assertEquals(count, tree.size());
+            final byte[] root = tree.getRoot();
+            final byte[] signature = sign(root);
+            for (int i = 0; i < count; i++) {
+                final InclusionProof proof = tree.getProof(i);
+                assertEquals(i, proof.getIndex());
+                assertArrayEquals(root, proof.computeRoot(challenges.get(i)));
+                assertTrue(BatchVerifier.verify(mKeyPair.getPublic(), challenges.get(i), proof, root, signature));
+            }
+        }
+    }
+
+    @Test
+    public void singleChallengeHasAnEmptyProof() {
+        final MerkleTree tree = new MerkleTree(challenges(1));
+        assertEquals(0, tree.getProof(0).getDepth());
+    }
+
+    @Test
+    public void proofsAreNotInterchangeable() {
+        final List<byte[]> challenges = challenges(7);
+        final MerkleTree tree = new MerkleTree(challenges);
+        assertFalse(BatchVerifier.verifyInclusion(challenges.get(0), tree.getProof(1), tree.getRoot()));
+        assertFalse(BatchVerifier.verifyInclusion(challenges.get(6), tree.getProof(5), tree.getRoot()));
+    }
+
+    @Test
+    public void tamperedLeafIsRejected() {
+        final List<byte[]> challenges = challenges(5);
+        final MerkleTree tree = new MerkleTree(challenges);
+        for (int i = 0; i < challenges.size(); i++)
+            assertFalse(BatchVerifier.verifyInclusion(flip(challenges.get(i)), tree.getProof(i), tree.getRoot()));
+    }
+
+    @Test
+    public void tamperedSiblingIsRejected() {
+        final List<byte[]> challenges = challenges(6);
+        final MerkleTree tree = new MerkleTree(challenges);
+        for (int i = 0; i < challenges.size(); i++) {
+            final InclusionProof proof = tree.getProof(i);
+            for (int level = 0; level < proof.getDepth(); level++) {
+                final byte[][] siblings = new byte[proof.getDepth()][];
+                final boolean[] sides = new boolean[proof.getDepth()];
+                for (int j = 0; j < siblings.length; j++) {
+                    siblings[j] = j == level ? flip(proof.getSibling(j)) : proof.getSibling(j);
+                    sides[j] = proof.isSiblingOnLeft(j);
+                }
+                final InclusionProof tampered = new InclusionProof(i, siblings, sides);
+                assertFalse(BatchVerifier.verifyInclusion(challenges.get(i), tampered, tree.getRoot()));
+
+                // Moving the sibling to the other side doesn't help either
+                sides[level] = !sides[level];
+                siblings[level] = proof.getSibling(level);
+                final InclusionProof swapped = new InclusionProof(i, siblings, sides);
+                assertFalse(BatchVerifier.verifyInclusion(challenges.get(i), swapped, tree.getRoot()));
+            }
+        }
+    }
+
+    @Test
+    public void tamperedRootIsRejected() throws Exception {
+        final List<byte[]> challenges = challenges(4);
+        final MerkleTree tree = new MerkleTree(challenges);
+        final byte[] signature = sign(tree.getRoot());
+        final byte[] forged = flip(tree.getRoot());
+        assertFalse(BatchVerifier.verifyRoot(mKeyPair.getPublic(), forged, signature));
+        assertFalse(BatchVerifier.verify(mKeyPair.getPublic(), challenges.get(2), tree.getProof(2), forged, signature));
+    }
+
+    @Test
+    public void otherKeyIsRejected() throws Exception {
+        final MerkleTree tree = new MerkleTree(challenges(3));
+        final byte[] signature = sign(tree.getRoot());
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(BatchSigner.CURVE));
+        final KeyPair other = generator.generateKeyPair();
+        assertFalse(BatchVerifier.verifyRoot(other.getPublic(), tree.getRoot(), signature));
+    }
+
+    @Test
+    public void innerNodeIsNotALeaf() {
+        // The parent of the first two leaves, passed off as a challenge with the rest of the proof
+        final List<byte[]> challenges = challenges(4);
+        final MerkleTree tree = new MerkleTree(challenges);
+        final InclusionProof proof = tree.getProof(0);
+        final byte[] leftParent = new InclusionProof(0, new byte[][]{proof.getSibling(0)},
+                new boolean[]{false}).computeRoot(challenges.get(0));
+        final InclusionProof upper = new InclusionProof(0, new byte[][]{proof.getSibling(1)}, new boolean[]{false});
+        assertFalse(BatchVerifier.verifyInclusion(leftParent, upper, tree.getRoot()));
+    }
+
+    @Test
+    public void emptyBatchIsRejected() {
+        try {
+            new MerkleTree(new ArrayList<byte[]>());
+            fail("An empty batch has no root.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void proofIndexIsChecked() {
+        final MerkleTree tree = new MerkleTree(challenges(3));
+        try {
+            tree.getProof(3);
+            fail("There's no fourth challenge.");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package com.afollestad.digitus;
+
+import android.Manifest;
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers {@link Digitus} with seeded random interleavings of beginAuthentication, the prompt
+ * finishing or being cancelled, attach/detach, init/deinit and handleResult, while a
+ * {@link SimulatedFingerprintSensor} plays a random timeline for every prompt. A model of what was
+ * called is kept alongside; after every step the registry has to agree with it, every callback has
+ * to have received exactly the events it expects, and no request or sensor session may be answered
+ * twice. Once a run is deinitialized, every request has been answered exactly once.
+ * <p/>
+ * A failure names its seed and step, so it can be replayed by running that seed alone.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.M, manifest = Config.NONE)
+public class DigitusStressTest {
+
+    private static final String KEY_NAME = "stress";
+    private static final String BYSTANDER_KEY_NAME = "bystander";
+    private static final int REQUEST_CODE = 70;
+    private static final int BYSTANDER_REQUEST_CODE = 71;
+    private static final int RUNS = 25;
+    private static final int STEPS = 200;
+    private static final int ACTIVITIES = 3;
+
+    // Timelines end 1 or 2 past a multiple of 4 and the clock only moves in multiples of 4, so the
+    // model never has to guess whether an event due exactly now has run
+    private static final long[] DELAYS = {0, 5, 45, 405};
+    private static final long[] IDLES = {4, 40, 400, 4000};
+    private static final long NEVER = -1;
+
+    private SimulatedFingerprintSensor mSensor;
+    private Random mRandom;
+    private TestActivity[] mActivities;
+    private TestActivity mBystander;
+    private Digitus mBystanderDigitus;
+
+    // What Digitus should be doing for KEY_NAME
+    private boolean mGranted;
+    private boolean mInitialized;
+    private boolean mReady;
+    private TestActivity mAttached;
+    private boolean mPromptInFlight;
+    private boolean mListening;
+    private long mTimelineEnd;
+    private boolean mTimelineSucceeds;
+    private long mElapsed;
+    private int mPromptsStarted;
+    private int mSessionsCancelled;
+    private final Map<TestActivity, List<String>> mExpected = new HashMap<>();
+    private final List<String> mHeldBack = new ArrayList<>();
+    private final List<CountingRequest> mRequests = new ArrayList<>();
+    private final List<CountingRequest> mJoined = new ArrayList<>();
+    private final List<CountingRequest> mAuthorizedWhileDetached = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        TestKeyStoreProvider.install();
+        DeviceCapabilities.invalidate();
+        ShadowLooper.pauseMainLooper();
+        final KeyguardManager keyguardManager = (KeyguardManager) RuntimeEnvironment.application
+                .getSystemService(Context.KEYGUARD_SERVICE);
+        Shadows.shadowOf(keyguardManager).setIsKeyguardSecure(true);
+        Digitus.setFingerprintSensor(new SimulatedFingerprintSensor());
+        Digitus.setPromptFactory(new SilentPrompt.Factory());
+
+        // Another key name which is ready the whole time, and must not notice any of it
+        grantPermission();
+        mBystander = Robolectric.buildActivity(TestActivity.class).create().get();
+        mBystanderDigitus = Digitus.init(mBystander, BYSTANDER_KEY_NAME, BYSTANDER_REQUEST_CODE);
+        assertTrue(Digitus.isReady(BYSTANDER_KEY_NAME));
+        mBystander.mEvents.clear();
+    }
+
+    @After
+    public void tearDown() {
+        Digitus.deinit(KEY_NAME);
+        Digitus.deinit(BYSTANDER_KEY_NAME);
+        Digitus.setFingerprintSensor(null);
+        Digitus.setPromptFactory(null);
+        TestKeyStoreProvider.uninstall();
+    }
+
+    private static void grantPermission() {
+        ShadowApplication.getInstance().grantPermissions(Manifest.permission.USE_FINGERPRINT);
+        DeviceCapabilities.invalidate();
+    }
+
+    private static void handleResult(int requestCode, String permission, int state) {
+        Digitus.handleResult(requestCode, new String[]{permission}, new int[]{state});
+    }
+
+    @Test
+    public void randomInterleavings() {
+        for (long seed = 0; seed < RUNS; seed++) {
+            startRun(seed);
+            for (int step = 0; step < STEPS; step++) {
+                final String op = step();
+                verify("Seed " + seed + ", step " + step + " (" + op + ")");
+            }
+
+            Digitus.deinit(KEY_NAME);
+            deinitModel();
+            // Whatever the sensor still had scheduled doesn't reach anyone
+            ShadowLooper.idleMainLooper(IDLES[IDLES.length - 1]);
+            final String message = "Seed " + seed + " (deinit)";
+            verify(message);
+            for (CountingRequest request : mRequests)
+                assertEquals(message, request.mThrew ? 0 : 1, request.mAnswers.size());
+        }
+    }
+
+    private void startRun(long seed) {
+        mRandom = new Random(seed);
+        mSensor = new SimulatedFingerprintSensor();
+        Digitus.setFingerprintSensor(mSensor);
+        ShadowApplication.getInstance().denyPermissions(Manifest.permission.USE_FINGERPRINT);
+        DeviceCapabilities.invalidate();
+        mGranted = mRandom.nextBoolean();
+        if (mGranted)
+            grantPermission();
+
+        mActivities = new TestActivity[ACTIVITIES];
+        mExpected.clear();
+        for (int i = 0; i < ACTIVITIES; i++) {
+            mActivities[i] = Robolectric.buildActivity(TestActivity.class).create().get();
+            mExpected.put(mActivities[i], new ArrayList<String>());
+        }
+        mInitialized = false;
+        mReady = false;
+        mAttached = null;
+        endPrompt();
+        mPromptsStarted = 0;
+        mSessionsCancelled = 0;
+        mHeldBack.clear();
+        mRequests.clear();
+        mJoined.clear();
+        mAuthorizedWhileDetached.clear();
+    }
+
+    /**
+     * Makes one random call, and updates the model with what it should have done.
+     *
+     * @return What was done, for the failure message.
+     */
+    private String step() {
+        switch (mRandom.nextInt(15)) {
+            case 0:
+            case 1:
+            case 2:
+                return begin();
+            case 3:
+                if (!mPromptInFlight)
+                    return "password (no prompt)";
+                Digitus.notifyAuthenticated(KEY_NAME, false);
+                succeed();
+                return "password";
+            case 4:
+                Digitus.notifyAuthenticationCancelled(KEY_NAME);
+                if (mPromptInFlight) {
+                    answer(mJoined, "cancelled");
+                    endPrompt();
+                }
+                return "cancel";
+            case 5:
+            case 6:
+            case 7: {
+                final long idle = IDLES[mRandom.nextInt(IDLES.length)];
+                ShadowLooper.idleMainLooper(idle);
+                advance(idle);
+                return "idle " + idle;
+            }
+            case 8:
+                Digitus.detach(KEY_NAME);
+                if (mInitialized)
+                    mAttached = null;
+                return "detach";
+            case 9: {
+                final TestActivity activity = randomActivity();
+                Digitus.attach(activity, KEY_NAME, REQUEST_CODE);
+                if (mInitialized) reattachModel(activity);
+                else initModel(activity);
+                enableLowLatency();
+                return "attach " + indexOf(activity);
+            }
+            case 10: {
+                final TestActivity activity = randomActivity();
+                Digitus.init(activity, KEY_NAME, REQUEST_CODE);
+                initModel(activity);
+                enableLowLatency();
+                return "init " + indexOf(activity);
+            }
+            case 11:
+                Digitus.deinit(KEY_NAME);
+                deinitModel();
+                return "deinit";
+            case 12:
+                grantPermission();
+                handleResult(REQUEST_CODE, Manifest.permission.USE_FINGERPRINT, PackageManager.PERMISSION_GRANTED);
+                mGranted = true;
+                if (mInitialized && !mReady) {
+                    mReady = true;
+                    // Readiness isn't held back, attaching reports it anyway
+                    if (mAttached != null)
+                        expect(mAttached, "ready");
+                }
+                return "granted";
+            case 13:
+                if (mGranted)
+                    return "denied (already granted)";
+                handleResult(REQUEST_CODE, Manifest.permission.USE_FINGERPRINT, PackageManager.PERMISSION_DENIED);
+                if (mInitialized)
+                    deliver("error:PermissionDeniedError");
+                return "denied";
+            default:
+                // Results which aren't for this key name, or not for the fingerprint permission
+                handleResult(REQUEST_CODE + 2, Manifest.permission.USE_FINGERPRINT, PackageManager.PERMISSION_GRANTED);
+                handleResult(REQUEST_CODE, Manifest.permission.CAMERA, PackageManager.PERMISSION_DENIED);
+                return "other results";
+        }
+    }
+
+    private String begin() {
+        final CountingRequest request = new CountingRequest();
+        mRequests.add(request);
+        final boolean accepted = mInitialized && mReady && (mPromptInFlight || mAttached != null);
+        final boolean starts = accepted && !mPromptInFlight;
+        if (starts)
+            enqueueTimeline();
+        try {
+            Digitus.beginAuthentication(KEY_NAME, request);
+        } catch (IllegalStateException e) {
+            request.mThrew = true;
+            assertTrue("Rejected a request it should have taken: " + e.getMessage(), !accepted);
+            return "begin (rejected)";
+        }
+        assertTrue("Took a request it should have rejected.", accepted);
+        mJoined.add(request);
+        if (starts) {
+            mPromptInFlight = true;
+            mListening = true;
+            mPromptsStarted++;
+            return "begin";
+        }
+        return "begin (joined)";
+    }
+
+    /**
+     * Queues the timeline the next prompt's sensor session plays, and remembers when it ends.
+     */
+    private void enqueueTimeline() {
+        final long first = DELAYS[mRandom.nextInt(DELAYS.length)];
+        final long second = DELAYS[mRandom.nextInt(DELAYS.length)];
+        mElapsed = 0;
+        switch (mRandom.nextInt(5)) {
+            case 0:
+                // Nothing touches the sensor
+                mTimelineEnd = NEVER;
+                return;
+            case 1:
+                mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                        .succeeded(first));
+                mTimelineEnd = first;
+                mTimelineSucceeds = true;
+                return;
+            case 2:
+                mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                        .failed(first)
+                        .succeeded(second));
+                mTimelineEnd = first + second;
+                mTimelineSucceeds = true;
+                return;
+            case 3:
+                mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                        .help(first, 1, "Move your finger slower")
+                        .error(second, FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, "Hardware unavailable"));
+                mTimelineEnd = first + second;
+                mTimelineSucceeds = false;
+                return;
+            default:
+                mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                        .error(first, FingerprintManager.FINGERPRINT_ERROR_UNABLE_TO_PROCESS, "Try again"));
+                mTimelineEnd = first;
+                mTimelineSucceeds = false;
+        }
+    }
+
+    /**
+     * Moves the model's clock, letting the playing timeline end if it's due.
+     */
+    private void advance(long millis) {
+        if (!mListening || mTimelineEnd == NEVER)
+            return;
+        mElapsed += millis;
+        if (mElapsed <= mTimelineEnd)
+            return;
+        // The session is over either way; after an error the prompt stays up for the password
+        mListening = false;
+        mTimelineEnd = NEVER;
+        if (mTimelineSucceeds)
+            succeed();
+    }
+
+    private void succeed() {
+        if (mAttached != null) {
+            expect(mAttached, "authenticated");
+            answer(mJoined, "authorized");
+        } else {
+            mHeldBack.add("authenticated");
+            mAuthorizedWhileDetached.addAll(mJoined);
+            mJoined.clear();
+        }
+        endPrompt();
+    }
+
+    /**
+     * The prompt is gone, and the sensor session is stopped if it was still listening.
+     */
+    private void endPrompt() {
+        if (mListening)
+            mSessionsCancelled++;
+        mPromptInFlight = false;
+        mListening = false;
+        mTimelineEnd = NEVER;
+    }
+
+    private void initModel(TestActivity activity) {
+        if (mInitialized && mReady && mAttached == activity) {
+            // Initializing again from the same Activity reuses the entry, prompt and all
+            expect(activity, "ready");
+            return;
+        }
+        if (mInitialized)
+            deinitModel();
+        mInitialized = true;
+        mAttached = activity;
+        mReady = mGranted;
+        if (mReady)
+            expect(activity, "ready");
+    }
+
+    private void reattachModel(TestActivity activity) {
+        final boolean wasDetached = mAttached == null;
+        mAttached = activity;
+        if (mGranted) {
+            // Either ready already, or the permission was granted while it was away
+            mReady = true;
+            expect(activity, "ready");
+        }
+        if (wasDetached) {
+            for (String event : mHeldBack)
+                expect(activity, event);
+            mHeldBack.clear();
+            answer(mAuthorizedWhileDetached, "authorized");
+        }
+    }
+
+    private void deinitModel() {
+        if (!mInitialized)
+            return;
+        // The callback's held back events have nobody to go to, but the requests are still answered
+        mHeldBack.clear();
+        answer(mAuthorizedWhileDetached, "authorized");
+        answer(mJoined, "cancelled");
+        endPrompt();
+        mInitialized = false;
+        mReady = false;
+        mAttached = null;
+    }
+
+    /**
+     * An event for the callback, delivered now or held back until an Activity is attached.
+     */
+    private void deliver(String event) {
+        if (mAttached != null) expect(mAttached, event);
+        else mHeldBack.add(event);
+    }
+
+    private void expect(TestActivity activity, String event) {
+        mExpected.get(activity).add(event);
+    }
+
+    private static void answer(List<CountingRequest> requests, String answer) {
+        for (CountingRequest request : requests)
+            request.mExpected = answer;
+        requests.clear();
+    }
+
+    private void verify(String message) {
+        final Digitus digitus = Digitus.get(KEY_NAME);
+        assertEquals(message, mInitialized, digitus != null);
+        assertEquals(message, mReady, Digitus.isReady(KEY_NAME));
+
+        // Each prompt arms the sensor once, and each session is stopped at most once
+        assertEquals(message, mPromptsStarted, mSensor.getAuthenticateCount());
+        assertEquals(message, mSessionsCancelled, mSensor.getCancelCount());
+        assertEquals(message, mListening, mSensor.isListening());
+
+        for (TestActivity activity : mActivities)
+            assertEquals(message + ", Activity " + indexOf(activity), mExpected.get(activity), activity.mEvents);
+        for (int i = 0; i < mRequests.size(); i++) {
+            final CountingRequest request = mRequests.get(i);
+            final List<String> expected = request.mExpected != null
+                    ? Collections.singletonList(request.mExpected) : Collections.<String>emptyList();
+            assertEquals(message + ", request " + i, expected, request.mAnswers);
+        }
+
+        assertSame(message, mBystanderDigitus, Digitus.get(BYSTANDER_KEY_NAME));
+        assertTrue(message, Digitus.isReady(BYSTANDER_KEY_NAME));
+        assertTrue(message, mBystander.mEvents.isEmpty());
+    }
+
+    private TestActivity randomActivity() {
+        return mActivities[mRandom.nextInt(ACTIVITIES)];
+    }
+
+    private int indexOf(TestActivity activity) {
+        for (int i = 0; i < ACTIVITIES; i++) {
+            if (mActivities[i] == activity)
+                return i;
+        }
+        return -1;
+    }
+
+    private static void enableLowLatency() {
+        // The prompt is silent, so the engine listens as soon as it's shown and reports right away
+        Digitus.get(KEY_NAME).enableLowLatency(0);
+    }
+
+    /**
+     * Records every answer it gets, which the model compares with the one it expects.
+     */
+    private static class CountingRequest implements AuthorizationRequest {
+
+        final List<String> mAnswers = new ArrayList<>();
+        String mExpected;
+        boolean mThrew;
+
+        @Override
+        public void onAuthorized() {
+            mAnswers.add("authorized");
+        }
+
+        @Override
+        public void onAuthorizationCancelled() {
+            mAnswers.add("cancelled");
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package com.afollestad.digitus;
+
+import android.Manifest;
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Replays scripted sensor timelines through {@link Digitus} with a {@link SimulatedFingerprintSensor},
+ * checking what the engine publishes and what the {@link DigitusCallback} receives. The main Looper
+ * is paused, so events only arrive when a test lets them.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.M, manifest = Config.NONE)
+public class DigitusTimelineTest {
+
+    private static final String KEY_NAME = "timeline";
+    private static final int REQUEST_CODE = 69;
+
+    private SimulatedFingerprintSensor mSensor;
+    private TestActivity mActivity;
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() {
+        TestKeyStoreProvider.install();
+        DeviceCapabilities.invalidate();
+        ShadowLooper.pauseMainLooper();
+        final KeyguardManager keyguardManager = (KeyguardManager) RuntimeEnvironment.application
+                .getSystemService(Context.KEYGUARD_SERVICE);
+        Shadows.shadowOf(keyguardManager).setIsKeyguardSecure(true);
+        mSensor = new SimulatedFingerprintSensor();
+        Digitus.setFingerprintSensor(mSensor);
+        mActivity = Robolectric.buildActivity(TestActivity.class).create().get();
+        mListener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() {
+        Digitus.deinit(KEY_NAME);
+        Digitus.setFingerprintSensor(null);
+        Digitus.setPromptFactory(null);
+        TestKeyStoreProvider.uninstall();
+    }
+
+    private static void grantPermission() {
+        ShadowApplication.getInstance().grantPermissions(Manifest.permission.USE_FINGERPRINT);
+    }
+
+    private void initReady() {
+        grantPermission();
+        Digitus.init(mActivity, KEY_NAME, REQUEST_CODE);
+        assertTrue(Digitus.isReady(KEY_NAME));
+        mActivity.mEvents.clear();
+    }
+
+    @Test
+    public void initGeneratesMissingKey() {
+        grantPermission();
+        Digitus.init(mActivity, KEY_NAME, REQUEST_CODE);
+        assertEquals(Collections.singletonList("ready"), mActivity.mEvents);
+        assertEquals(KeyLifecycle.Reason.MISSING, Digitus.getKeyLifecycle().getLastReason());
+    }
+
+    @Test
+    public void initWithoutFingerprintsNeedsRegistration() {
+        mSensor.setEnrolled(false);
+        grantPermission();
+        Digitus.init(mActivity, KEY_NAME, REQUEST_CODE);
+        assertEquals(Collections.singletonList("registration"), mActivity.mEvents);
+        assertFalse(Digitus.isReady(KEY_NAME));
+    }
+
+    @Test
+    public void handleResultFinishesInitOnceGranted() {
+        Digitus.init(mActivity, KEY_NAME, REQUEST_CODE);
+        assertFalse(Digitus.isReady(KEY_NAME));
+        assertTrue(mActivity.mEvents.isEmpty());
+
+        grantPermission();
+        Digitus.handleResult(REQUEST_CODE, new String[]{Manifest.permission.USE_FINGERPRINT},
+                new int[]{PackageManager.PERMISSION_GRANTED});
+        assertTrue(Digitus.isReady(KEY_NAME));
+        assertEquals(Collections.singletonList("ready"), mActivity.mEvents);
+    }
+
+    @Test
+    public void handleResultReportsDenial() {
+        Digitus.init(mActivity, KEY_NAME, REQUEST_CODE);
+        Digitus.handleResult(REQUEST_CODE, new String[]{Manifest.permission.USE_FINGERPRINT},
+                new int[]{PackageManager.PERMISSION_DENIED});
+        assertFalse(Digitus.isReady(KEY_NAME));
+        assertEquals(Collections.singletonList("error:PermissionDeniedError"), mActivity.mEvents);
+    }
+
+    @Test
+    public void handleResultIgnoresOtherRequests() {
+        Digitus.init(mActivity, KEY_NAME, REQUEST_CODE);
+        grantPermission();
+        Digitus.handleResult(REQUEST_CODE + 1, new String[]{Manifest.permission.USE_FINGERPRINT},
+                new int[]{PackageManager.PERMISSION_GRANTED});
+        Digitus.handleResult(REQUEST_CODE, new String[]{Manifest.permission.CAMERA},
+                new int[]{PackageManager.PERMISSION_GRANTED});
+        assertFalse(Digitus.isReady(KEY_NAME));
+        assertTrue(mActivity.mEvents.isEmpty());
+    }
+
+    @Test
+    public void helpAndFailureThenSuccess() {
+        initReady();
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .help(100, 1, "Move your finger slower")
+                .failed(200)
+                .succeeded(300));
+        final AuthenticationEngine engine = Digitus.beginAuthentication(KEY_NAME, mListener);
+        assertNotNull(engine);
+        assertEquals(Stage.FINGERPRINT, engine.getStage());
+        assertTrue(mSensor.isListening());
+        assertTrue(mActivity.mEvents.isEmpty());
+
+        // Each event is only posted once the one before it ran, so the clock has to move past them all
+        ShadowLooper.idleMainLooper(1000);
+        assertEquals(Arrays.asList("listening", "help:Move your finger slower", "failed", "succeeded"),
+                mListener.mEvents);
+        assertEquals(Collections.singletonList("authenticated"), mActivity.mEvents);
+        assertFalse(mSensor.isListening());
+        assertFalse(engine.isListening());
+    }
+
+    @Test
+    public void errorEndsTheTimeline() {
+        initReady();
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .failed(0)
+                .error(0, FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, "Hardware unavailable")
+                .succeeded(0));
+        Digitus.beginAuthentication(KEY_NAME, mListener);
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(Arrays.asList("listening", "failed",
+                "error:" + FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE), mListener.mEvents);
+        assertTrue(mActivity.mEvents.isEmpty());
+    }
+
+    @Test
+    public void lockoutCarriesOverToTheNextPrompt() {
+        initReady();
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .failed(0)
+                .lockout(0));
+        final AuthenticationEngine first = Digitus.beginAuthentication(KEY_NAME, mListener);
+        assertNotNull(first);
+        // Only what's due now, the engine re-arms the sensor once the lockout is over
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(Arrays.asList("listening", "failed", "lockout"), mListener.mEvents);
+        assertEquals(1, mSensor.getAuthenticateCount());
+
+        final RecordingListener second = new RecordingListener();
+        final AuthenticationEngine engine = Digitus.beginAuthentication(KEY_NAME, second);
+        assertNotNull(engine);
+        // The new prompt is told about the lockout right away, and doesn't arm the sensor early
+        assertEquals(Collections.singletonList("lockout"), second.mEvents);
+        assertEquals(1, mSensor.getAuthenticateCount());
+        assertEquals(first.getLockedOutUntil(), engine.getLockedOutUntil());
+        assertEquals(Stage.FINGERPRINT, engine.getStage());
+        assertTrue(mActivity.mEvents.isEmpty());
+    }
+
+    @Test
+    public void deinitCancelsThePlayingTimeline() {
+        initReady();
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .succeeded(1000));
+        Digitus.beginAuthentication(KEY_NAME, mListener);
+        assertTrue(mSensor.isListening());
+
+        Digitus.deinit(KEY_NAME);
+        assertFalse(mSensor.isListening());
+        assertEquals(1, mSensor.getCancelCount());
+
+        // Neither the success nor the cancellation of a stopped session gets through
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(Collections.singletonList("listening"), mListener.mEvents);
+        assertTrue(mActivity.mEvents.isEmpty());
+        assertFalse(Digitus.isReady(KEY_NAME));
+    }
+
+    @Test
+    public void cancelledPromptIgnoresALateFingerprint() {
+        initReady();
+        Digitus.setPromptFactory(new SilentPrompt.Factory());
+        Digitus.get(KEY_NAME).enableLowLatency(0);
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .succeeded(100));
+        final List<String> requests = new ArrayList<>();
+        Digitus.beginAuthentication(KEY_NAME, new RecordingRequest(requests));
+        assertTrue(mSensor.isListening());
+
+        Digitus.notifyAuthenticationCancelled(KEY_NAME);
+        assertFalse(mSensor.isListening());
+        assertEquals(1, mSensor.getCancelCount());
+        ShadowLooper.idleMainLooper(1000);
+        assertEquals(Collections.singletonList("cancelled"), requests);
+        assertTrue(mActivity.mEvents.isEmpty());
+    }
+
+    @Test
+    public void invalidatedKeyWaitsForThePassword() {
+        initReady();
+        TestKeyStoreProvider.invalidate(KEY_NAME);
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .succeeded(0));
+        final AuthenticationEngine engine = Digitus.beginAuthentication(KEY_NAME, mListener);
+        assertNotNull(engine);
+        assertEquals(Stage.NEW_FINGERPRINT_ENROLLED, engine.getStage());
+        assertEquals(0, mSensor.getAuthenticateCount());
+        assertTrue(Digitus.getKeyLifecycle().isInvalidated());
+
+        // The caller checked the password, so the key is replaced
+        Digitus.recreateKey(KEY_NAME);
+        Digitus.notifyAuthenticated(KEY_NAME, false);
+        assertEquals(KeyLifecycle.Reason.INVALIDATED, Digitus.getKeyLifecycle().getLastReason());
+        assertFalse(Digitus.getKeyLifecycle().isInvalidated());
+        assertEquals(Collections.singletonList("authenticated"), mActivity.mEvents);
+    }
+
+    @Test
+    public void invalidatedKeyAsksForTheSessionKey() throws Exception {
+        initReady();
+        Digitus.get(KEY_NAME).enableEnvelope(60000);
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .succeeded(0));
+        Digitus.beginAuthentication(KEY_NAME, mListener);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        final SecretKey sessionKey = Digitus.getSessionKey(KEY_NAME);
+        assertNotNull(sessionKey);
+        final char[] password = "hunter2".toCharArray();
+        SessionKeys.escrow(KEY_NAME, password);
+        mActivity.mEvents.clear();
+
+        TestKeyStoreProvider.invalidate(KEY_NAME);
+        final AuthenticationEngine engine = Digitus.beginAuthentication(KEY_NAME, mListener);
+        assertNotNull(engine);
+        assertEquals(Stage.NEW_FINGERPRINT_ENROLLED, engine.getStage());
+        // Nothing the old key unlocked stays usable
+        assertNull(Digitus.getSessionKey(KEY_NAME));
+
+        // The password replaces the key, but the session key isn't quietly replaced along with it
+        Digitus.recreateKey(KEY_NAME);
+        Digitus.notifyAuthenticated(KEY_NAME, false);
+        assertEquals(Arrays.asList("error:SessionKeyLostException", "authenticated"), mActivity.mEvents);
+        assertTrue(SessionKeys.isRecoveryNeeded(KEY_NAME));
+        mActivity.mEvents.clear();
+
+        assertArrayEquals(sessionKey.getEncoded(), SessionKeys.recover(KEY_NAME, password).getEncoded());
+        assertFalse(SessionKeys.isRecoveryNeeded(KEY_NAME));
+
+        // The next fingerprint wraps the recovered key with the new fingerprint key...
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .succeeded(0));
+        Digitus.beginAuthentication(KEY_NAME, mListener);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(Collections.singletonList("authenticated"), mActivity.mEvents);
+
+        // ...which unwraps it from then on
+        SessionKeyCache.get().evict(KEY_NAME);
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .succeeded(0));
+        Digitus.beginAuthentication(KEY_NAME, mListener);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertArrayEquals(sessionKey.getEncoded(), Digitus.getSessionKey(KEY_NAME).getEncoded());
+    }
+
+    @Test
+    public void discardedSessionKeyIsReplaced() {
+        initReady();
+        Digitus.get(KEY_NAME).enableEnvelope(60000);
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .succeeded(0));
+        Digitus.beginAuthentication(KEY_NAME, mListener);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        final SecretKey sessionKey = Digitus.getSessionKey(KEY_NAME);
+        assertNotNull(sessionKey);
+
+        TestKeyStoreProvider.invalidate(KEY_NAME);
+        Digitus.beginAuthentication(KEY_NAME, mListener);
+        Digitus.recreateKey(KEY_NAME);
+        Digitus.notifyAuthenticated(KEY_NAME, false);
+        assertTrue(SessionKeys.isRecoveryNeeded(KEY_NAME));
+
+        // Nothing was escrowed, so the app gives up on the old key
+        SessionKeys.discard(KEY_NAME);
+        assertFalse(SessionKeys.isRecoveryNeeded(KEY_NAME));
+        mSensor.enqueue(new SimulatedFingerprintSensor.Script()
+                .succeeded(0));
+        Digitus.beginAuthentication(KEY_NAME, mListener);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertNotNull(Digitus.getSessionKey(KEY_NAME));
+        assertFalse(Arrays.equals(sessionKey.getEncoded(), Digitus.getSessionKey(KEY_NAME).getEncoded()));
+    }
+
+    @Test
+    public void passwordGoesThroughTheCallback() {
+        initReady();
+        assertNull(Digitus.validatePassword(KEY_NAME, "hunter2"));
+        assertEquals(Collections.singletonList("password:hunter2"), mActivity.mEvents);
+        mActivity.mEvents.clear();
+
+        // Held back while detached, like every other event
+        Digitus.detach(KEY_NAME);
+        assertNull(Digitus.validatePassword(KEY_NAME, "hunter3"));
+        assertTrue(mActivity.mEvents.isEmpty());
+        Digitus.attach(mActivity, KEY_NAME, REQUEST_CODE);
+        assertEquals(Arrays.asList("ready", "password:hunter3"), mActivity.mEvents);
+    }
+
+    @Test
+    public void requestsFollowTheDispatchedSuccess() {
+        initReady();
+        Digitus.setPromptFactory(new SilentPrompt.Factory());
+        final QueueExecutor executor = new QueueExecutor();
+        Digitus.get(KEY_NAME).setCallbackExecutor(executor);
+        Digitus.beginAuthentication(KEY_NAME, new RecordingRequest(mActivity.mEvents));
+        Digitus.notifyAuthenticated(KEY_NAME, false);
+        assertTrue(mActivity.mEvents.isEmpty());
+
+        executor.runAll();
+        assertEquals(Arrays.asList("authenticated", "authorized"), mActivity.mEvents);
+    }
+
+    @Test
+    public void requestsWaitForTheHeldBackSuccess() {
+        initReady();
+        Digitus.setPromptFactory(new SilentPrompt.Factory());
+        final List<String> requests = new ArrayList<>();
+        Digitus.beginAuthentication(KEY_NAME, new RecordingRequest(requests));
+        Digitus.detach(KEY_NAME);
+        Digitus.notifyAuthenticated(KEY_NAME, false);
+        assertTrue(requests.isEmpty());
+
+        // Replayed on attach, in the order it happened
+        Digitus.attach(mActivity, KEY_NAME, REQUEST_CODE);
+        assertEquals(Collections.singletonList("authorized"), requests);
+        assertEquals(Arrays.asList("ready", "authenticated"), mActivity.mEvents);
+    }
+
+    @Test
+    public void heldBackRequestsAreAnsweredOnDeinit() {
+        initReady();
+        Digitus.setPromptFactory(new SilentPrompt.Factory());
+        final List<String> requests = new ArrayList<>();
+        Digitus.beginAuthentication(KEY_NAME, new RecordingRequest(requests));
+        Digitus.detach(KEY_NAME);
+        Digitus.notifyAuthenticated(KEY_NAME, false);
+
+        // The Activity never comes back, but the user did authenticate
+        Digitus.deinit(KEY_NAME);
+        assertEquals(Collections.singletonList("authorized"), requests);
+        assertTrue(mActivity.mEvents.isEmpty());
+    }
+
+    @Test
+    public void failedRequestIsNotAnsweredLater() {
+        initReady();
+        Digitus.setPromptFactory(new SilentPrompt.Factory());
+        Digitus.detach(KEY_NAME);
+        final List<String> requests = new ArrayList<>();
+        try {
+            Digitus.beginAuthentication(KEY_NAME, new RecordingRequest(requests));
+            fail("There's no Activity to show the prompt in.");
+        } catch (IllegalStateException expected) {
+        }
+
+        Digitus.deinit(KEY_NAME);
+        assertTrue(requests.isEmpty());
+    }
+
+    /**
+     * Runs tasks in order, when the test says so.
+     */
+    private static class QueueExecutor implements Executor {
+
+        private final Queue<Runnable> mTasks = new LinkedList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null)
+                task.run();
+        }
+    }
+
+    /**
+     * Records how it's answered into the given list, which can be shared with the callback's.
+     */
+    private static class RecordingRequest implements AuthorizationRequest {
+
+        private final List<String> mEvents;
+
+        RecordingRequest(List<String> events) {
+            mEvents = events;
+        }
+
+        @Override
+        public void onAuthorized() {
+            mEvents.add("authorized");
+        }
+
+        @Override
+        public void onAuthorizationCancelled() {
+            mEvents.add("cancelled");
+        }
+    }
+
+    /**
+     * Records what an engine publishes, in order.
+     */
+    private static class RecordingListener implements AuthenticationEngine.Listener {
+
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onStageChanged(Stage stage) {
+            mEvents.add("stage:" + stage);
+        }
+
+        @Override
+        public void onListening() {
+            mEvents.add("listening");
+        }
+
+        @Override
+        public void onAuthenticationHelp(CharSequence helpString) {
+            mEvents.add("help:" + helpString);
+        }
+
+        @Override
+        public void onAuthenticationFailed() {
+            mEvents.add("failed");
+        }
+
+        @Override
+        public void onAuthenticationError(int errorCode, CharSequence errString) {
+            mEvents.add("error:" + errorCode);
+        }
+
+        @Override
+        public void onLockout(long remainingMillis) {
+            mEvents.add("lockout");
+        }
+
+        @Override
+        public void onAuthenticationSucceeded() {
+            mEvents.add("succeeded");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.afollestad.digitus;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Escrows data keys with {@link KeyEscrow} and recovers them, in the private preferences Robolectric
+ * provides.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.M, manifest = Config.NONE)
+public class KeyEscrowTest {
+
+    private static final String KEY_NAME = "escrow";
+    private static final char[] PASSWORD = "correct horse".toCharArray();
+
+    private KeyEscrow mEscrow;
+    private SecretKey mDataKey;
+
+    @Before
+    public void setUp() throws Exception {
+        mEscrow = new KeyEscrow(RuntimeEnvironment.application);
+        mDataKey = EnvelopeKey.generateDataKey();
+    }
+
+    @Test
+    public void recoversWithThePassword() throws Exception {
+        assertFalse(mEscrow.hasKey(KEY_NAME));
+        mEscrow.escrow(KEY_NAME, mDataKey, PASSWORD);
+        assertTrue(mEscrow.hasKey(KEY_NAME));
+        assertArrayEquals(mDataKey.getEncoded(), mEscrow.recover(KEY_NAME, PASSWORD).getEncoded());
+        // Survives a new instance, i.e. process death
+        assertArrayEquals(mDataKey.getEncoded(),
+                new KeyEscrow(RuntimeEnvironment.application).recover(KEY_NAME, PASSWORD).getEncoded());
+    }
+
+    @Test
+    public void nothingEscrowedRecoversNull() throws Exception {
+        assertNull(mEscrow.recover(KEY_NAME, PASSWORD));
+    }
+
+    @Test
+    public void wrongPasswordFails() throws Exception {
+        mEscrow.escrow(KEY_NAME, mDataKey, PASSWORD);
+        try {
+            mEscrow.recover(KEY_NAME, "wrong horse".toCharArray());
+            fail("The wrong password can't unwrap the key.");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void slotsAreKeptApart() throws Exception {
+        final SecretKey next = EnvelopeKey.generateDataKey();
+        mEscrow.escrow(KEY_NAME, mDataKey, PASSWORD);
+        mEscrow.escrow(KEY_NAME, KeyEscrow.NEXT, next, PASSWORD);
+        assertArrayEquals(mDataKey.getEncoded(), mEscrow.recover(KEY_NAME, KeyEscrow.CURRENT, PASSWORD).getEncoded());
+        assertArrayEquals(next.getEncoded(), mEscrow.recover(KEY_NAME, KeyEscrow.NEXT, PASSWORD).getEncoded());
+
+        mEscrow.remove(KEY_NAME, KeyEscrow.NEXT);
+        assertNull(mEscrow.recover(KEY_NAME, KeyEscrow.NEXT, PASSWORD));
+        assertTrue(mEscrow.hasKey(KEY_NAME));
+    }
+
+    @Test
+    public void movedRecordFails() throws Exception {
+        mEscrow.escrow(KEY_NAME, mDataKey, PASSWORD);
+        final SharedPreferences prefs = RuntimeEnvironment.application
+                .getSharedPreferences(KeyEscrow.PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putString(KEY_NAME + ":" + KeyEscrow.NEXT,
+                prefs.getString(KEY_NAME + ":" + KeyEscrow.CURRENT, null)).commit();
+        try {
+            mEscrow.recover(KEY_NAME, KeyEscrow.NEXT, PASSWORD);
+            fail("A record is bound to the slot it was escrowed in.");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void clearForgetsEverySlot() throws Exception {
+        mEscrow.escrow(KEY_NAME, mDataKey, PASSWORD);
+        mEscrow.escrow(KEY_NAME, KeyEscrow.NEXT, mDataKey, PASSWORD);
+        mEscrow.clear(KEY_NAME);
+        assertFalse(mEscrow.hasKey(KEY_NAME));
+        assertFalse(mEscrow.hasKey(KEY_NAME, KeyEscrow.NEXT));
+    }
+}
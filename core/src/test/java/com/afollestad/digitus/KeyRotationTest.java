@@ -0,0 +1,252 @@
+package com.afollestad.digitus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Rotates in-memory stores with {@link KeyRotation}, including runs which fail part way through and
+ * are resumed from their checkpoint file.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class KeyRotationTest {
+
+    // More than two chunks, the last one partial
+    private static final int RECORDS = 600;
+
+    private SecretKey mFrom;
+    private SecretKey mTo;
+    private File mCheckpoint;
+
+    @Before
+    public void setUp() throws Exception {
+        final KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        mFrom = generator.generateKey();
+        mTo = generator.generateKey();
+        mCheckpoint = File.createTempFile("rotation", ".checkpoint");
+        //noinspection ResultOfMethodCallIgnored
+        mCheckpoint.delete();
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mCheckpoint.delete();
+    }
+
+    private static byte[] payload(int index) {
+        return ("record-" + index).getBytes();
+    }
+
+    private MemoryStore sealedStore(boolean batched) throws GeneralSecurityException {
+        final MemoryStore store = batched ? new BatchMemoryStore() : new MemoryStore();
+        for (int i = 0; i < RECORDS; i++)
+            store.mRecords.put("id-" + i, KeyRotation.seal(mFrom, payload(i)));
+        return store;
+    }
+
+    private void assertRotated(MemoryStore store) throws GeneralSecurityException {
+        assertEquals(RECORDS, store.mRecords.size());
+        for (int i = 0; i < RECORDS; i++)
+            assertArrayEquals(payload(i), KeyRotation.open(mTo, store.mRecords.get("id-" + i)));
+        // Nothing was re-encrypted twice, however many runs it took
+        for (AtomicInteger writes : store.mWrites.values())
+            assertEquals(1, writes.get());
+        assertFalse(mCheckpoint.exists());
+    }
+
+    @Test
+    public void rotatesEveryRecord() throws Exception {
+        final MemoryStore store = sealedStore(true);
+        final AtomicInteger progress = new AtomicInteger();
+        final int rotated = new KeyRotation(mFrom, mTo, store, mCheckpoint, 4)
+                .setListener(new KeyRotation.Listener() {
+                    @Override
+                    public void onProgress(int rotated, int total) {
+                        assertEquals(RECORDS, total);
+                        progress.incrementAndGet();
+                    }
+                })
+                .run();
+        assertEquals(RECORDS, rotated);
+        assertEquals(RECORDS, progress.get());
+        assertRotated(store);
+    }
+
+    @Test
+    public void writesRecordByRecordWithoutBatches() throws Exception {
+        final MemoryStore store = sealedStore(false);
+        assertEquals(RECORDS, new KeyRotation(mFrom, mTo, store, mCheckpoint, 2).run());
+        assertRotated(store);
+    }
+
+    @Test
+    public void secondRunHasNothingToDo() throws Exception {
+        final MemoryStore store = sealedStore(true);
+        new KeyRotation(mFrom, mTo, store, mCheckpoint, 2).run();
+        assertEquals(0, new KeyRotation(mFrom, mTo, store, mCheckpoint, 2).run());
+        assertRotated(store);
+    }
+
+    @Test
+    public void resumesFromTheCheckpoint() throws Exception {
+        final MemoryStore store = sealedStore(true);
+        store.mFailingWrite = 2;
+        try {
+            new KeyRotation(mFrom, mTo, store, mCheckpoint, 1).run();
+            fail("The second chunk's write fails.");
+        } catch (IOException expected) {
+        }
+        assertTrue(mCheckpoint.exists());
+        final int before = store.writeCount();
+        assertTrue(before > 0 && before < RECORDS);
+
+        store.mFailingWrite = 0;
+        assertEquals(RECORDS - before, new KeyRotation(mFrom, mTo, store, mCheckpoint, 1).run());
+        assertRotated(store);
+    }
+
+    @Test
+    public void resumesFromTheTagsWithoutCheckpoint() throws Exception {
+        final MemoryStore store = sealedStore(true);
+        store.mFailingWrite = 2;
+        try {
+            new KeyRotation(mFrom, mTo, store, mCheckpoint, 1).run();
+            fail("The second chunk's write fails.");
+        } catch (IOException expected) {
+        }
+        final int before = store.writeCount();
+        //noinspection ResultOfMethodCallIgnored
+        mCheckpoint.delete();
+
+        store.mFailingWrite = 0;
+        assertEquals(RECORDS - before, new KeyRotation(mFrom, mTo, store, mCheckpoint, 3).run());
+        assertRotated(store);
+    }
+
+    @Test
+    public void checkpointOfOtherKeysIsIgnored() throws Exception {
+        final MemoryStore other = sealedStore(true);
+        other.mFailingWrite = 2;
+        try {
+            new KeyRotation(mFrom, mTo, other, mCheckpoint, 1).run();
+            fail("The second chunk's write fails.");
+        } catch (IOException expected) {
+        }
+
+        // Same checkpoint file, other target key: every record still has to move
+        final KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        mTo = generator.generateKey();
+        final MemoryStore store = sealedStore(true);
+        assertEquals(RECORDS, new KeyRotation(mFrom, mTo, store, mCheckpoint, 2).run());
+        assertRotated(store);
+    }
+
+    @Test
+    public void recordUnderNeitherKeyFails() throws Exception {
+        final MemoryStore store = sealedStore(true);
+        final KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        store.mRecords.put("id-7", KeyRotation.seal(generator.generateKey(), payload(7)));
+        try {
+            new KeyRotation(mFrom, mTo, store, mCheckpoint, 2).run();
+            fail("A record of another key can't be rotated.");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void tamperedRecordFails() throws Exception {
+        final MemoryStore store = sealedStore(true);
+        final byte[] record = store.mRecords.get("id-3");
+        record[record.length - 1] ^= 1;
+        try {
+            new KeyRotation(mFrom, mTo, store, mCheckpoint, 2).run();
+            fail("A tampered record doesn't open.");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    /**
+     * Records by ID, which counts the writes of each and can fail one of its writes.
+     */
+    private static class MemoryStore implements PayloadStore {
+
+        final Map<String, byte[]> mRecords = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, AtomicInteger> mWrites = new ConcurrentHashMap<>();
+        private final AtomicInteger mWriteCalls = new AtomicInteger();
+        /**
+         * The 1-based write call which fails, or 0 for none.
+         */
+        volatile int mFailingWrite;
+
+        @Override
+        public List<String> getIds() {
+            return new ArrayList<>(mRecords.keySet());
+        }
+
+        @Override
+        public byte[] read(String id) {
+            return mRecords.get(id).clone();
+        }
+
+        @Override
+        public void write(String id, byte[] record) throws IOException {
+            checkFailure();
+            put(id, record);
+        }
+
+        void checkFailure() throws IOException {
+            if (mWriteCalls.incrementAndGet() == mFailingWrite)
+                throw new IOException("Simulated write failure.");
+        }
+
+        void put(String id, byte[] record) {
+            mRecords.put(id, record);
+            mWrites.putIfAbsent(id, new AtomicInteger());
+            mWrites.get(id).incrementAndGet();
+        }
+
+        int writeCount() {
+            int count = 0;
+            for (AtomicInteger writes : mWrites.values())
+                count += writes.get();
+            return count;
+        }
+    }
+
+    /**
+     * Takes a whole chunk per write call, so a failure loses the chunk rather than part of it.
+     */
+    private static class BatchMemoryStore extends MemoryStore implements BatchPayloadStore {
+
+        @Override
+        public void write(Map<String, byte[]> records) throws IOException {
+            checkFailure();
+            for (Map.Entry<String, byte[]> record : records.entrySet())
+                put(record.getKey(), record.getValue());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.afollestad.digitus;
+
+import android.app.Activity;
+
+/**
+ * A prompt without any UI, so the engine is only driven by the test.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class SilentPrompt implements AuthenticationPrompt {
+
+    static class Factory implements AuthenticationPrompt.Factory {
+
+        @Override
+        public AuthenticationPrompt create(String keyName) {
+            return new SilentPrompt();
+        }
+    }
+
+    @Override
+    public void show(Activity activity, AuthenticationEngine engine, long lowLatencyAnimationMillis) {
+    }
+
+    @Override
+    public void dismiss() {
+    }
+
+    @Override
+    public void notifyPasswordValidation(boolean valid) {
+    }
+
+    @Override
+    public void notifyPasswordValidationTimedOut() {
+    }
+
+    @Override
+    public void preload(Activity activity) {
+    }
+
+    @Override
+    public void release() {
+    }
+}
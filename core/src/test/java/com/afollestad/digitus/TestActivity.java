@@ -0,0 +1,41 @@
+package com.afollestad.digitus;
+
+import android.app.Activity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An Activity which records the {@link DigitusCallback} events it receives, in order.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class TestActivity extends Activity implements DigitusCallback {
+
+    final List<String> mEvents = new ArrayList<>();
+
+    @Override
+    public void onDigitusReady() {
+        mEvents.add("ready");
+    }
+
+    @Override
+    public void onDigitusRegistrationNeeded() {
+        mEvents.add("registration");
+    }
+
+    @Override
+    public void onDigitusAuthenticated() {
+        mEvents.add("authenticated");
+    }
+
+    @Override
+    public void onDigitusError(Exception e) {
+        mEvents.add("error:" + e.getClass().getSimpleName());
+    }
+
+    @Override
+    public void onDigitusValidatePassword(String password) {
+        mEvents.add("password:" + password);
+    }
+}
@@ -0,0 +1,294 @@
+package com.afollestad.digitus;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyStoreSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.KeyGeneratorSpi;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+
+/**
+ * An in-memory "AndroidKeyStore" for Robolectric, which has none. Generated keys are stored under
+ * the alias of their {@link KeyGenParameterSpec} like the real keystore does, and
+ * {@link #invalidate(String)} makes a key fail with {@link KeyPermanentlyInvalidatedException}, as
+ * enrolling a new fingerprint does on a device.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class TestKeyStoreProvider extends Provider {
+
+    static final String NAME = DigitusProviders.KEY_STORE;
+
+    private static final Map<String, Key> sKeys = new ConcurrentHashMap<>();
+    private static final Set<Key> sInvalidated = Collections.synchronizedSet(
+            Collections.newSetFromMap(new IdentityHashMap<Key, Boolean>()));
+
+    private TestKeyStoreProvider() {
+        super(NAME, 1.0, "In-memory stand-in for AndroidKeyStore");
+        put("KeyStore." + NAME, TestKeyStoreSpi.class.getName());
+        put("KeyGenerator.AES", TestKeyGeneratorSpi.class.getName());
+        put("Cipher." + DigitusProviders.TRANSFORMATION, TestCipherSpi.class.getName());
+    }
+
+    /**
+     * Registers the provider ahead of all others, with an empty store. Robolectric may load this
+     * class again for another test, so the provider is replaced rather than kept.
+     */
+    static void install() {
+        Security.removeProvider(NAME);
+        Security.insertProviderAt(new TestKeyStoreProvider(), 1);
+        sKeys.clear();
+        sInvalidated.clear();
+    }
+
+    static void uninstall() {
+        Security.removeProvider(NAME);
+    }
+
+    /**
+     * Permanently invalidates the key stored under the alias, like enrolling a new fingerprint does.
+     */
+    static void invalidate(String alias) {
+        final Key key = sKeys.get(alias);
+        if (key != null)
+            sInvalidated.add(key);
+    }
+
+    public static final class TestKeyStoreSpi extends KeyStoreSpi {
+
+        @Override
+        public void engineLoad(InputStream stream, char[] password) {
+        }
+
+        @Override
+        public Key engineGetKey(String alias, char[] password) {
+            return sKeys.get(alias);
+        }
+
+        @Override
+        public boolean engineContainsAlias(String alias) {
+            return sKeys.containsKey(alias);
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            return Collections.enumeration(sKeys.keySet());
+        }
+
+        @Override
+        public int engineSize() {
+            return sKeys.size();
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) {
+            sKeys.put(alias, key);
+        }
+
+        @Override
+        public void engineDeleteEntry(String alias) {
+            sKeys.remove(alias);
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(String alias) {
+            return engineContainsAlias(alias);
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(String alias) {
+            return null;
+        }
+
+        @Override
+        public Certificate engineGetCertificate(String alias) {
+            return null;
+        }
+
+        @Override
+        public Date engineGetCreationDate(String alias) {
+            return null;
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineSetCertificateEntry(String alias, Certificate cert) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(String alias) {
+            return false;
+        }
+
+        @Override
+        public String engineGetCertificateAlias(Certificate cert) {
+            return null;
+        }
+
+        @Override
+        public void engineStore(OutputStream stream, char[] password) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static final class TestKeyGeneratorSpi extends KeyGeneratorSpi {
+
+        private static final int DEFAULT_KEY_SIZE = 128;
+
+        private final KeyGenerator mDelegate;
+        private String mAlias;
+
+        public TestKeyGeneratorSpi() throws NoSuchAlgorithmException, NoSuchProviderException {
+            mDelegate = KeyGenerator.getInstance("AES", "SunJCE");
+        }
+
+        @Override
+        protected void engineInit(SecureRandom random) {
+            mAlias = null;
+            mDelegate.init(DEFAULT_KEY_SIZE, random);
+        }
+
+        @Override
+        protected void engineInit(AlgorithmParameterSpec params, SecureRandom random)
+                throws InvalidAlgorithmParameterException {
+            if (!(params instanceof KeyGenParameterSpec))
+                throw new InvalidAlgorithmParameterException("Expected a KeyGenParameterSpec.");
+            final KeyGenParameterSpec spec = (KeyGenParameterSpec) params;
+            mAlias = spec.getKeystoreAlias();
+            mDelegate.init(spec.getKeySize() > 0 ? spec.getKeySize() : DEFAULT_KEY_SIZE, random);
+        }
+
+        @Override
+        protected void engineInit(int keySize, SecureRandom random) {
+            mAlias = null;
+            mDelegate.init(keySize, random);
+        }
+
+        @Override
+        protected SecretKey engineGenerateKey() {
+            final SecretKey key = mDelegate.generateKey();
+            if (mAlias != null)
+                sKeys.put(mAlias, key);
+            return key;
+        }
+    }
+
+    public static final class TestCipherSpi extends CipherSpi {
+
+        private final Cipher mDelegate;
+
+        public TestCipherSpi() throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
+            // AndroidKeyStore's PKCS7Padding is what the JVM's providers call PKCS5Padding
+            mDelegate = Cipher.getInstance("AES/CBC/PKCS5Padding", "SunJCE");
+        }
+
+        private static void checkValid(Key key) throws KeyPermanentlyInvalidatedException {
+            if (sInvalidated.contains(key))
+                throw new KeyPermanentlyInvalidatedException();
+        }
+
+        @Override
+        protected void engineSetMode(String mode) {
+        }
+
+        @Override
+        protected void engineSetPadding(String padding) {
+        }
+
+        @Override
+        protected int engineGetBlockSize() {
+            return mDelegate.getBlockSize();
+        }
+
+        @Override
+        protected int engineGetOutputSize(int inputLen) {
+            return mDelegate.getOutputSize(inputLen);
+        }
+
+        @Override
+        protected byte[] engineGetIV() {
+            return mDelegate.getIV();
+        }
+
+        @Override
+        protected AlgorithmParameters engineGetParameters() {
+            return mDelegate.getParameters();
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+            checkValid(key);
+            mDelegate.init(opmode, key, random);
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            checkValid(key);
+            mDelegate.init(opmode, key, params, random);
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            checkValid(key);
+            mDelegate.init(opmode, key, params, random);
+        }
+
+        @Override
+        protected byte[] engineUpdate(byte[] input, int offset, int length) {
+            return mDelegate.update(input, offset, length);
+        }
+
+        @Override
+        protected int engineUpdate(byte[] input, int offset, int length, byte[] output, int outputOffset)
+                throws ShortBufferException {
+            return mDelegate.update(input, offset, length, output, outputOffset);
+        }
+
+        @Override
+        protected byte[] engineDoFinal(byte[] input, int offset, int length)
+                throws IllegalBlockSizeException, BadPaddingException {
+            return mDelegate.doFinal(input, offset, length);
+        }
+
+        @Override
+        protected int engineDoFinal(byte[] input, int offset, int length, byte[] output, int outputOffset)
+                throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+            return mDelegate.doFinal(input, offset, length, output, outputOffset);
+        }
+    }
+}
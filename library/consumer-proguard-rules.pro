@@ -0,0 +1,4 @@
+# The core module creates the dialog reflectively when this module is present
+-keep class com.afollestad.digitus.google.DialogPrompt {
+    public <init>(java.lang.String);
+}
@@ -0,0 +1,65 @@
+package com.afollestad.digitus.google;
+
+import android.app.Activity;
+
+import com.afollestad.digitus.AuthenticationEngine;
+import com.afollestad.digitus.AuthenticationPrompt;
+
+/**
+ * The default {@link AuthenticationPrompt}, which shows a {@link FingerprintAuthenticationDialogFragment}.
+ * Digitus creates it by name whenever this module is present.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class DialogPrompt implements AuthenticationPrompt {
+
+    private final String mKeyName;
+    private FingerprintAuthenticationDialogFragment mFragment;
+    private DialogViewPool mViewPool;
+
+    public DialogPrompt(String keyName) {
+        mKeyName = keyName;
+    }
+
+    @Override
+    public void show(Activity activity, AuthenticationEngine engine, long lowLatencyAnimationMillis) {
+        mFragment = new FingerprintAuthenticationDialogFragment();
+        mFragment.setKeyName(mKeyName);
+        mFragment.setEngine(engine);
+        mFragment.setViewPool(mViewPool);
+        if (lowLatencyAnimationMillis >= 0)
+            mFragment.setLowLatency(lowLatencyAnimationMillis);
+        mFragment.show(activity.getFragmentManager(), "[fingerprint-tag]");
+    }
+
+    @Override
+    public void dismiss() {
+        if (mFragment != null) mFragment.dismiss();
+        mFragment = null;
+    }
+
+    @Override
+    public void notifyPasswordValidation(boolean valid) {
+        if (mFragment != null)
+            mFragment.notifyPasswordValidation(valid);
+    }
+
+    @Override
+    public void notifyPasswordValidationTimedOut() {
+        if (mFragment != null)
+            mFragment.notifyPasswordValidationTimedOut();
+    }
+
+    @Override
+    public void preload(Activity activity) {
+        if (mViewPool == null)
+            mViewPool = new DialogViewPool(activity);
+        mViewPool.prepare();
+    }
+
+    @Override
+    public void release() {
+        if (mViewPool != null) mViewPool.clear();
+        mViewPool = null;
+    }
+}
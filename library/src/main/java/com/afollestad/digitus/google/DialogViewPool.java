@@ -0,0 +1,122 @@
+package com.afollestad.digitus.google;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.support.v4.content.ContextCompat;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.afollestad.digitus.R;
+
+/**
+ * Keeps an inflated fingerprint dialog view hierarchy around so that prompts after the first don't
+ * inflate anything. The view is pre-inflated while the main thread is idle, and its state is reset
+ * whenever a dialog gives it back. Only used from the main thread.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class DialogViewPool {
+
+    private final Context mContext;
+    private View mIdleView;
+    private boolean mInUse;
+    private boolean mIdleScheduled;
+
+    public DialogViewPool(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Inflates the view the next time the main thread is idle, if there isn't one ready already.
+     */
+    public void prepare() {
+        if (mIdleScheduled || mIdleView != null || mInUse)
+            return;
+        mIdleScheduled = true;
+        Looper.myQueue().addIdleHandler(mIdleHandler);
+    }
+
+    /**
+     * @return True if the pool's views were inflated for the given context, e.g. not for an Activity
+     * that has been recreated since.
+     */
+    boolean isFor(Context context) {
+        return mContext == context;
+    }
+
+    /**
+     * @return The pooled view, or a newly inflated one if it isn't ready yet.
+     */
+    View acquire() {
+        View view = mIdleView;
+        mIdleView = null;
+        if (view == null)
+            view = inflate();
+        mInUse = true;
+        return view;
+    }
+
+    /**
+     * Takes back a view from a dialog that's going away. A password field which was tinted to report
+     * a wrong password can't be reset cleanly, so such a view is dropped and a new one is inflated.
+     */
+    void release(View view, boolean tinted) {
+        mInUse = false;
+        if (view.getParent() instanceof ViewGroup)
+            ((ViewGroup) view.getParent()).removeView(view);
+        if (tinted) {
+            prepare();
+            return;
+        }
+        reset(view);
+        mIdleView = view;
+    }
+
+    /**
+     * Drops the pooled view, e.g. once the Activity it was inflated for goes away.
+     */
+    public void clear() {
+        if (mIdleScheduled) {
+            Looper.myQueue().removeIdleHandler(mIdleHandler);
+            mIdleScheduled = false;
+        }
+        mIdleView = null;
+    }
+
+    private View inflate() {
+        return LayoutInflater.from(mContext).inflate(R.layout.fingerprint_dialog_container, null);
+    }
+
+    private void reset(View v) {
+        v.findViewById(R.id.fingerprint_container).setVisibility(View.VISIBLE);
+        v.findViewById(R.id.backup_container).setVisibility(View.GONE);
+        ((ImageView) v.findViewById(R.id.fingerprint_icon)).setImageResource(R.drawable.ic_fp_40px);
+        final TextView status = (TextView) v.findViewById(R.id.fingerprint_status);
+        status.setText(R.string.fingerprint_hint);
+        status.setTextColor(ContextCompat.getColor(mContext, R.color.hint_color));
+        final TextView passwordDescription = (TextView) v.findViewById(R.id.password_description);
+        passwordDescription.setText(R.string.password_description);
+        passwordDescription.setVisibility(View.VISIBLE);
+        v.findViewById(R.id.new_fingerprint_enrolled_description).setVisibility(View.GONE);
+        ((EditText) v.findViewById(R.id.password)).setText("");
+        final CheckBox useFingerprintInFuture = (CheckBox) v.findViewById(R.id.use_fingerprint_in_future_check);
+        useFingerprintInFuture.setChecked(true);
+        useFingerprintInFuture.setVisibility(View.GONE);
+    }
+
+    private final MessageQueue.IdleHandler mIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mIdleScheduled = false;
+            if (mIdleView == null && !mInUse)
+                mIdleView = inflate();
+            return false;
+        }
+    };
+}
@@ -1,12 +1,10 @@
 package com.afollestad.digitus.google;
 
-import android.Manifest;
 import android.app.Activity;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.hardware.fingerprint.FingerprintManager;
+import android.content.DialogInterface;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -21,13 +19,16 @@ import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.afollestad.digitus.AuthenticationEngine;
 import com.afollestad.digitus.Digitus;
-import com.afollestad.digitus.DigitusCallback;
 import com.afollestad.digitus.R;
+import com.afollestad.digitus.Stage;
 import com.afollestad.materialdialogs.DialogAction;
 import com.afollestad.materialdialogs.MaterialDialog;
 import com.afollestad.materialdialogs.internal.MDTintHelper;
 
+import java.util.concurrent.Future;
+
 /**
  * A dialog which uses fingerprint APIs to authenticate the user, and falls back to password
  * authentication if fingerprint is not available.
@@ -43,13 +44,17 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
     private TextView mPasswordDescriptionTextView;
     private TextView mNewFingerprintEnrolledTextView;
 
-    private Stage mStage = Stage.FINGERPRINT;
-
-    private FingerprintManager.CryptoObject mCryptoObject;
+    private AuthenticationEngine mEngine;
     private FingerprintUiHelper mFingerprintUiHelper;
-    private DigitusCallback mCallback;
+    private String mKeyName;
+    private Future<Boolean> mPendingValidation;
+    private DialogViewPool mViewPool;
+    private View mPooledView;
+    private boolean mPasswordTinted;
+    private boolean mLowLatency;
+    private long mAnimationMillis;
+    private boolean mAuthenticatedEarly;
 
-    FingerprintUiHelper.FingerprintUiHelperBuilder mFingerprintUiHelperBuilder;
     InputMethodManager mInputMethodManager;
 
     public FingerprintAuthenticationDialogFragment() {
@@ -63,9 +68,16 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
 
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
-        MaterialDialog dialog = new MaterialDialog.Builder(getActivity())
-                .title(R.string.sign_in)
-                .customView(R.layout.fingerprint_dialog_container, false)
+        MaterialDialog.Builder builder = new MaterialDialog.Builder(getActivity())
+                .title(R.string.sign_in);
+        releasePooledView();
+        if (mViewPool != null && mViewPool.isFor(getActivity())) {
+            mPooledView = mViewPool.acquire();
+            builder.customView(mPooledView, false);
+        } else {
+            builder.customView(R.layout.fingerprint_dialog_container, false);
+        }
+        MaterialDialog dialog = builder
                 .positiveText(android.R.string.cancel)
                 .negativeText(R.string.use_password)
                 .autoDismiss(false)
@@ -78,7 +90,7 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
                 .onNegative(new MaterialDialog.SingleButtonCallback() {
                     @Override
                     public void onClick(@NonNull MaterialDialog materialDialog, @NonNull DialogAction dialogAction) {
-                        if (mStage == Stage.FINGERPRINT) {
+                        if (mEngine.getStage() == Stage.FINGERPRINT) {
                             goToBackup(materialDialog);
                         } else {
                             verifyPassword();
@@ -98,19 +110,28 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
                 v.findViewById(R.id.use_fingerprint_in_future_check);
         mNewFingerprintEnrolledTextView = (TextView)
                 v.findViewById(R.id.new_fingerprint_enrolled_description);
-        if (mFingerprintUiHelperBuilder != null) {
-            mFingerprintUiHelper = mFingerprintUiHelperBuilder.build(
-                    (ImageView) v.findViewById(R.id.fingerprint_icon),
-                    (TextView) v.findViewById(R.id.fingerprint_status), this);
-        }
+        if (mFingerprintUiHelper != null)
+            mFingerprintUiHelper.release();
+        mFingerprintUiHelper = new FingerprintUiHelper.FingerprintUiHelperBuilder(mEngine).build(
+                (ImageView) v.findViewById(R.id.fingerprint_icon),
+                (TextView) v.findViewById(R.id.fingerprint_status), this);
+        if (mLowLatency)
+            mFingerprintUiHelper.setDelays(mAnimationMillis, mAnimationMillis);
         updateStage(dialog);
+        if (mAuthenticatedEarly) {
+            // The sensor was armed early and the user was already authenticated, nothing to show.
+            v.post(new Runnable() {
+                @Override
+                public void run() {
+                    dismiss();
+                }
+            });
+        }
 
         // If fingerprint authentication is not available, switch immediately to the backup (password) screen.
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M ||
-                ContextCompat.checkSelfPermission(getActivity(), Manifest.permission.USE_FINGERPRINT)
-                        != PackageManager.PERMISSION_GRANTED ||
-                mFingerprintUiHelper == null ||
-                !mFingerprintUiHelper.isFingerprintAuthAvailable()) {
+        // The engine reads availability, permission included, from the cached DeviceCapabilities.
+        if (mEngine.getStage() == Stage.FINGERPRINT && (Build.VERSION.SDK_INT < Build.VERSION_CODES.M ||
+                !mEngine.isFingerprintAuthAvailable())) {
             goToBackup(dialog);
         }
 
@@ -120,38 +141,101 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
     @Override
     public void onResume() {
         super.onResume();
-        if (mStage == Stage.FINGERPRINT && mFingerprintUiHelper != null)
-            mFingerprintUiHelper.startListening(mCryptoObject);
+        mEngine.startListening();
+    }
+
+    /**
+     * Sets the engine driving the sensor and stages, which this dialog renders.
+     */
+    public void setEngine(AuthenticationEngine engine) {
+        if (mEngine != null)
+            mEngine.removeListener(mEngineListener);
+        mEngine = engine;
+        mEngine.addListener(mEngineListener);
+    }
+
+    /**
+     * Low latency mode: Digitus reports a successful fingerprint itself as soon as the engine does, so
+     * this dialog only shows the success (or error) state for the given time before going away (or to
+     * the password screen).
+     */
+    public void setLowLatency(long animationMillis) {
+        mLowLatency = true;
+        mAnimationMillis = animationMillis;
+    }
+
+    private final AuthenticationEngine.Listener mEngineListener = new AuthenticationEngine.SimpleListener() {
+        @Override
+        public void onStageChanged(Stage stage) {
+            updateStage(null);
+        }
+
+        @Override
+        public void onAuthenticationSucceeded() {
+            if (getDialog() == null)
+                mAuthenticatedEarly = true;
+        }
+    };
+
+    /**
+     * Takes the dialog's views from the given pool instead of inflating them, and gives them back
+     * once the dialog goes away.
+     */
+    public void setViewPool(@Nullable DialogViewPool pool) {
+        mViewPool = pool;
+    }
+
+    private void releasePooledView() {
+        if (mPooledView == null) return;
+        mViewPool.release(mPooledView, mPasswordTinted);
+        mPooledView = null;
+        mPasswordTinted = false;
     }
 
-    public void setStage(Stage stage) {
-        mStage = stage;
+    /**
+     * Sets the Digitus key name this dialog authenticates for.
+     */
+    public void setKeyName(String keyName) {
+        mKeyName = keyName;
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        if (mFingerprintUiHelper != null)
-            mFingerprintUiHelper.stopListening();
+        mEngine.stopListening();
     }
 
     @Override
-    public void onAttach(Activity activity) {
-        super.onAttach(activity);
-        mCallback = (DigitusCallback) activity;
+    public void onDestroyView() {
+        super.onDestroyView();
+        releasePooledView();
+    }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            mFingerprintUiHelperBuilder = new FingerprintUiHelper.FingerprintUiHelperBuilder(
-                    (FingerprintManager) activity.getSystemService(Context.FINGERPRINT_SERVICE));
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mEngine.removeListener(mEngineListener);
+        if (mFingerprintUiHelper != null)
+            mFingerprintUiHelper.release();
+    }
+
+    @Override
+    public void onDismiss(DialogInterface dialog) {
+        super.onDismiss(dialog);
+        // Nobody is waiting for the result anymore.
+        if (mPendingValidation != null) {
+            mPendingValidation.cancel(true);
+            mPendingValidation = null;
         }
-        mInputMethodManager = (InputMethodManager) activity.getSystemService(Context.INPUT_METHOD_SERVICE);
+        // Nothing happens if the user authenticated, which already finished the prompt.
+        if (getActivity() != null && !getActivity().isChangingConfigurations())
+            Digitus.notifyAuthenticationCancelled(mKeyName);
     }
 
-    /**
-     * Sets the crypto object to be passed in when authenticating with fingerprint.
-     */
-    public void setCryptoObject(FingerprintManager.CryptoObject cryptoObject) {
-        mCryptoObject = cryptoObject;
+    @Override
+    public void onAttach(Activity activity) {
+        super.onAttach(activity);
+        mInputMethodManager = (InputMethodManager) activity.getSystemService(Context.INPUT_METHOD_SERVICE);
     }
 
     /**
@@ -160,46 +244,57 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
      * button. This can also happen when the user had too many fingerprint attempts.
      */
     private void goToBackup(MaterialDialog dialog) {
-        mStage = Stage.PASSWORD;
+        // Fingerprint is not used anymore, the engine stops listening for it.
+        mEngine.goToBackup();
         updateStage(dialog);
         mPassword.requestFocus();
 
         // Show the keyboard.
         mPassword.postDelayed(mShowKeyboardRunnable, 500);
-
-        // Fingerprint is not used anymore. Stop listening for it.
-        if (mFingerprintUiHelper != null)
-            mFingerprintUiHelper.stopListening();
     }
 
     private void verifyPassword() {
         MaterialDialog dialog = (MaterialDialog) getDialog();
         dialog.getActionButton(DialogAction.POSITIVE).setEnabled(false);
         dialog.getActionButton(DialogAction.NEGATIVE).setEnabled(false);
-        mCallback.onDigitusValidatePassword(mPassword.getText().toString());
+        final String password = mPassword.getText().toString();
+        // A validator set on Digitus runs in the background; otherwise, Digitus asks the callback.
+        mPendingValidation = Digitus.validatePassword(mKeyName, password);
+    }
+
+    public void notifyPasswordValidationTimedOut() {
+        mPendingValidation = null;
+        final MaterialDialog dialog = (MaterialDialog) getDialog();
+        if (dialog == null) return;
+        dialog.getActionButton(DialogAction.POSITIVE).setEnabled(true);
+        dialog.getActionButton(DialogAction.NEGATIVE).setEnabled(true);
+        mPasswordDescriptionTextView.setText(R.string.password_validation_timed_out);
     }
 
     public void notifyPasswordValidation(boolean valid) {
+        mPendingValidation = null;
         final MaterialDialog dialog = (MaterialDialog) getDialog();
+        if (dialog == null) return;
         final View positive = dialog.getActionButton(DialogAction.POSITIVE);
         final View negative = dialog.getActionButton(DialogAction.NEGATIVE);
         positive.setEnabled(true);
         negative.setEnabled(true);
 
         if (valid) {
-            if (mStage == Stage.NEW_FINGERPRINT_ENROLLED &&
+            if (mEngine.getStage() == Stage.NEW_FINGERPRINT_ENROLLED &&
                     mUseFingerprintFutureCheckBox.isChecked()) {
                 // Re-create the key so that fingerprints including new ones are validated.
-                Digitus.recreateKey();
-                mStage = Stage.FINGERPRINT;
+                Digitus.recreateKey(mKeyName);
+                mEngine.setStage(Stage.FINGERPRINT);
             }
             mPassword.setText("");
-            mCallback.onDigitusAuthenticated();
+            Digitus.notifyAuthenticated(mKeyName, false);
             dismiss();
         } else {
             mPasswordDescriptionTextView.setText(R.string.password_not_recognized);
             final int red = ContextCompat.getColor(getActivity(), R.color.material_red_500);
             MDTintHelper.setTint(mPassword, red);
+            mPasswordTinted = true;
             ((TextView) positive).setTextColor(red);
             ((TextView) negative).setTextColor(red);
         }
@@ -216,7 +311,8 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
         if (dialog == null)
             dialog = (MaterialDialog) getDialog();
         if (dialog == null) return;
-        switch (mStage) {
+        final Stage stage = mEngine.getStage();
+        switch (stage) {
             case FINGERPRINT:
                 dialog.setActionButton(DialogAction.POSITIVE, android.R.string.cancel);
                 dialog.setActionButton(DialogAction.NEGATIVE, R.string.use_password);
@@ -230,7 +326,7 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
                 dialog.setActionButton(DialogAction.NEGATIVE, android.R.string.ok);
                 mFingerprintContent.setVisibility(View.GONE);
                 mBackupContent.setVisibility(View.VISIBLE);
-                if (mStage == Stage.NEW_FINGERPRINT_ENROLLED) {
+                if (stage == Stage.NEW_FINGERPRINT_ENROLLED) {
                     mPasswordDescriptionTextView.setVisibility(View.GONE);
                     mNewFingerprintEnrolledTextView.setVisibility(View.VISIBLE);
                     mUseFingerprintFutureCheckBox.setVisibility(View.VISIBLE);
@@ -250,8 +346,10 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
 
     @Override
     public void onAuthenticated() {
-        // Callback from FingerprintUiHelper. Let the activity know that authentication was successful.
-        mCallback.onDigitusAuthenticated();
+        // Callback from FingerprintUiHelper. Let Digitus know that authentication was successful,
+        // unless it already knows because the dialog is in low latency mode.
+        if (!mLowLatency)
+            Digitus.notifyAuthenticated(mKeyName, true);
         dismiss();
     }
 
@@ -259,13 +357,4 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
     public void onError() {
         goToBackup(null);
     }
-
-    /**
-     * Enumeration to indicate which authentication method the user is trying to authenticate with.
-     */
-    public enum Stage {
-        FINGERPRINT,
-        NEW_FINGERPRINT_ENROLLED,
-        PASSWORD
-    }
 }
\ No newline at end of file
@@ -1,47 +1,44 @@
 package com.afollestad.digitus.google;
 
-import android.Manifest;
 import android.annotation.TargetApi;
-import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
-import android.os.CancellationSignal;
-import android.support.annotation.RequiresPermission;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.afollestad.digitus.AuthenticationEngine;
 import com.afollestad.digitus.R;
 
 /**
- * Small helper class to manage text/icon around fingerprint authentication UI.
+ * Small helper class to manage text/icon around fingerprint authentication UI. It renders the events
+ * of an {@link AuthenticationEngine}, which does the actual work with the sensor.
  */
 @TargetApi(Build.VERSION_CODES.M)
-public class FingerprintUiHelper extends FingerprintManager.AuthenticationCallback {
+public class FingerprintUiHelper extends AuthenticationEngine.SimpleListener {
 
     static final long ERROR_TIMEOUT_MILLIS = 1600;
     static final long SUCCESS_DELAY_MILLIS = 1300;
 
-    private final FingerprintManager mFingerprintManager;
+    private final AuthenticationEngine mEngine;
     private final ImageView mIcon;
     private final TextView mErrorTextView;
     private final Callback mCallback;
-    private CancellationSignal mCancellationSignal;
-
-    boolean mSelfCancelled;
+    private long mSuccessDelayMillis = SUCCESS_DELAY_MILLIS;
+    private long mErrorDelayMillis = ERROR_TIMEOUT_MILLIS;
+    private boolean mLockedOut;
 
     /**
-     * Builder class for {@link FingerprintUiHelper} in which injected fields from Dagger
-     * holds its fields and takes other arguments in the {@link #build} method.
+     * Builder class for {@link FingerprintUiHelper} which holds the engine and takes the views in
+     * the {@link #build} method.
      */
     public static class FingerprintUiHelperBuilder {
-        private final FingerprintManager mFingerPrintManager;
+        private final AuthenticationEngine mEngine;
 
-        public FingerprintUiHelperBuilder(FingerprintManager fingerprintManager) {
-            mFingerPrintManager = fingerprintManager;
+        public FingerprintUiHelperBuilder(AuthenticationEngine engine) {
+            mEngine = engine;
         }
 
         public FingerprintUiHelper build(ImageView icon, TextView errorTextView, Callback callback) {
-            return new FingerprintUiHelper(mFingerPrintManager, icon, errorTextView,
-                    callback);
+            return new FingerprintUiHelper(mEngine, icon, errorTextView, callback);
         }
     }
 
@@ -49,55 +46,67 @@ public class FingerprintUiHelper extends FingerprintManager.AuthenticationCallba
      * Constructor for {@link FingerprintUiHelper}. This method is expected to be called from
      * only the {@link FingerprintUiHelperBuilder} class.
      */
-    private FingerprintUiHelper(FingerprintManager fingerprintManager,
+    private FingerprintUiHelper(AuthenticationEngine engine,
                                 ImageView icon, TextView errorTextView, Callback callback) {
-        mFingerprintManager = fingerprintManager;
+        mEngine = engine;
         mIcon = icon;
         mErrorTextView = errorTextView;
         mCallback = callback;
+        mEngine.addListener(this);
+        // The views may be new (e.g. after a rotation) while the engine is still locked out.
+        final long lockoutRemaining = mEngine.getLockoutRemaining();
+        if (lockoutRemaining > 0)
+            onLockout(lockoutRemaining);
+    }
+
+    /**
+     * Sets how long the success and error states are shown before the {@link Callback} is notified.
+     */
+    public void setDelays(long successDelayMillis, long errorDelayMillis) {
+        mSuccessDelayMillis = successDelayMillis;
+        mErrorDelayMillis = errorDelayMillis;
     }
 
-    @RequiresPermission(Manifest.permission.USE_FINGERPRINT)
-    public boolean isFingerprintAuthAvailable() {
-        return mFingerprintManager.isHardwareDetected()
-                && mFingerprintManager.hasEnrolledFingerprints();
+    /**
+     * Stops rendering the engine's events, e.g. once the views are gone.
+     */
+    public void release() {
+        mEngine.removeListener(this);
+        mIcon.removeCallbacks(mErrorRunnable);
+        mIcon.removeCallbacks(mSuccessRunnable);
+        mErrorTextView.removeCallbacks(mResetErrorTextRunnable);
+        mErrorTextView.removeCallbacks(mLockoutRunnable);
     }
 
-    @RequiresPermission(Manifest.permission.USE_FINGERPRINT)
-    public void startListening(FingerprintManager.CryptoObject cryptoObject) {
-        if (!isFingerprintAuthAvailable()) {
-            return;
+    @Override
+    public void onListening() {
+        if (mLockedOut) {
+            // Re-armed after a lockout, the countdown is over.
+            mLockedOut = false;
+            mErrorTextView.removeCallbacks(mLockoutRunnable);
+            mResetErrorTextRunnable.run();
         }
-        mCancellationSignal = new CancellationSignal();
-        mSelfCancelled = false;
-        mFingerprintManager
-                .authenticate(cryptoObject, mCancellationSignal, 0 /* flags */, this, null);
         mIcon.setImageResource(R.drawable.ic_fp_40px);
     }
 
-    public void stopListening() {
-        if (mCancellationSignal != null) {
-            mSelfCancelled = true;
-            mCancellationSignal.cancel();
-            mCancellationSignal = null;
-        }
+    @Override
+    public void onLockout(long remainingMillis) {
+        mLockedOut = true;
+        mErrorTextView.removeCallbacks(mResetErrorTextRunnable);
+        mIcon.setImageResource(R.drawable.ic_fingerprint_error);
+        mErrorTextView.setTextColor(
+                mErrorTextView.getResources().getColor(R.color.warning_color, null));
+        mLockoutRunnable.run();
     }
 
     @Override
-    public void onAuthenticationError(int errMsgId, CharSequence errString) {
-        if (!mSelfCancelled) {
-            showError(errString);
-            mIcon.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mCallback.onError();
-                }
-            }, ERROR_TIMEOUT_MILLIS);
-        }
+    public void onAuthenticationError(int errorCode, CharSequence errString) {
+        showError(errString);
+        mIcon.postDelayed(mErrorRunnable, mErrorDelayMillis);
     }
 
     @Override
-    public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
+    public void onAuthenticationHelp(CharSequence helpString) {
         showError(helpString);
     }
 
@@ -108,19 +117,14 @@ public class FingerprintUiHelper extends FingerprintManager.AuthenticationCallba
     }
 
     @Override
-    public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
+    public void onAuthenticationSucceeded() {
         mErrorTextView.removeCallbacks(mResetErrorTextRunnable);
         mIcon.setImageResource(R.drawable.ic_fingerprint_success);
         mErrorTextView.setTextColor(
                 mErrorTextView.getResources().getColor(R.color.success_color, null));
         mErrorTextView.setText(
                 mErrorTextView.getResources().getString(R.string.fingerprint_success));
-        mIcon.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mCallback.onAuthenticated();
-            }
-        }, SUCCESS_DELAY_MILLIS);
+        mIcon.postDelayed(mSuccessRunnable, mSuccessDelayMillis);
     }
 
     private void showError(CharSequence error) {
@@ -132,6 +136,33 @@ public class FingerprintUiHelper extends FingerprintManager.AuthenticationCallba
         mErrorTextView.postDelayed(mResetErrorTextRunnable, ERROR_TIMEOUT_MILLIS);
     }
 
+    private final Runnable mErrorRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCallback.onError();
+        }
+    };
+
+    private final Runnable mSuccessRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCallback.onAuthenticated();
+        }
+    };
+
+    private final Runnable mLockoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long remaining = mEngine.getLockoutRemaining();
+            final long seconds = (remaining + 999) / 1000;
+            mErrorTextView.setText(mErrorTextView.getResources().getString(
+                    R.string.fingerprint_locked_out, seconds));
+            // Tick on the next whole second, until the engine re-arms the sensor.
+            if (remaining > 0)
+                mErrorTextView.postDelayed(this, remaining % 1000 == 0 ? 1000 : remaining % 1000);
+        }
+    };
+
     Runnable mResetErrorTextRunnable = new Runnable() {
         @Override
         public void run() {
@@ -149,4 +180,4 @@ public class FingerprintUiHelper extends FingerprintManager.AuthenticationCallba
 
         void onError();
     }
-}
\ No newline at end of file
+}
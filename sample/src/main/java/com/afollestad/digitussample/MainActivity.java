@@ -1,5 +1,6 @@
 package com.afollestad.digitussample;
 
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
@@ -9,6 +10,7 @@ import android.widget.TextView;
 
 import com.afollestad.digitus.Digitus;
 import com.afollestad.digitus.DigitusCallback;
+import com.afollestad.digitus.Pbkdf2PasswordValidator;
 
 /**
  * @author Aidan Follestad (afollestad)
@@ -17,6 +19,7 @@ public class MainActivity extends AppCompatActivity implements DigitusCallback {
 
     private TextView mStatus;
     private Button mButton;
+    private Pbkdf2PasswordValidator mPasswordValidator;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -24,12 +27,19 @@ public class MainActivity extends AppCompatActivity implements DigitusCallback {
         setContentView(R.layout.activity_main);
         mStatus = (TextView) findViewById(R.id.status);
         mButton = (Button) findViewById(R.id.beginAuthentication);
+
+        // The backup password for this sample is "password".
+        mPasswordValidator = new Pbkdf2PasswordValidator(this, "sample");
+        if (!mPasswordValidator.hasPassword())
+            mPasswordValidator.setPasswordAsync("password", AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        Digitus.init(this, getString(R.string.app_name), 6969);
+        // Keeps the key and dialog from before a rotation or a trip to the settings, if there are any.
+        Digitus.attach(this, getString(R.string.app_name), 6969)
+                .setPasswordValidator(mPasswordValidator, AsyncTask.THREAD_POOL_EXECUTOR, 10000);
         mButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -41,7 +51,8 @@ public class MainActivity extends AppCompatActivity implements DigitusCallback {
     @Override
     protected void onPause() {
         super.onPause();
-        Digitus.deinit();
+        if (isFinishing()) Digitus.deinit();
+        else Digitus.detach();
     }
 
     @Override
@@ -83,6 +94,6 @@ public class MainActivity extends AppCompatActivity implements DigitusCallback {
 
     @Override
     public void onDigitusValidatePassword(String password) {
-        Digitus.notifyPasswordValidation(password.equals("password"));
+        // Not called, since the password validator set on Digitus takes care of this.
     }
 }